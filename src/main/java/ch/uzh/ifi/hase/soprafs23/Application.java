@@ -5,15 +5,21 @@ import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.servlet.config.annotation.CorsRegistry;
 import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 @RestController
 @SpringBootApplication
+@EnableScheduling
 public class Application {
 
   public static void main(String[] args) {
+    // Byte Buddy (Hibernate proxies) only supports Java 21 in experimental mode, needed for virtual threads
+    if (Runtime.version().feature() > 17 && System.getProperty("net.bytebuddy.experimental") == null) {
+      System.setProperty("net.bytebuddy.experimental", "true");
+    }
     SpringApplication.run(Application.class, args);
   }
 
@@ -0,0 +1,32 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+/**
+ * Binary Content Negotiation
+ * Clients that send "Accept: application/cbor" or "Accept: application/x-jackson-smile"
+ * get the same DTOs in a compact binary encoding. The converters use the same
+ * Jackson configuration as the JSON converter (e.g. dates as ISO strings), and
+ * Spring Boot keeps them behind the JSON converter, so JSON stays the default.
+ */
+@Configuration
+public class BinaryContentNegotiationConfig {
+
+  // the builder bean is a prototype, so changing its factory does not affect the JSON object mapper
+
+  @Bean
+  public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+    return new MappingJackson2CborHttpMessageConverter(builder.factory(new CBORFactory()).build());
+  }
+
+  @Bean
+  public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {
+    return new MappingJackson2SmileHttpMessageConverter(builder.factory(new SmileFactory()).build());
+  }
+}
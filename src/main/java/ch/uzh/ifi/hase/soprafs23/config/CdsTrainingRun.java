@@ -0,0 +1,57 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ApplicationListener;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * CDS Training Run
+ * Used by the cdsArchive Gradle task: once the application is ready it sends a few
+ * requests to itself, so the classes of the request path end up in the AppCDS
+ * archive as well, and then shuts the JVM down, which makes the JVM write the archive.
+ */
+@Component
+@ConditionalOnProperty(name = "app.cds.training-run", havingValue = "true")
+public class CdsTrainingRun implements ApplicationListener<ApplicationReadyEvent> {
+
+  private static final String[] TRAINING_PATHS = { "/", "/users" };
+
+  private final Logger log = LoggerFactory.getLogger(CdsTrainingRun.class);
+
+  @Override
+  public void onApplicationEvent(ApplicationReadyEvent event) {
+    if (event.getApplicationContext() instanceof WebServerApplicationContext) {
+      int port = ((WebServerApplicationContext) event.getApplicationContext()).getWebServer().getPort();
+      for (String path : TRAINING_PATHS) {
+        warmUp(port, path);
+      }
+    }
+    log.info("CDS training run finished, shutting down");
+    System.exit(SpringApplication.exit(event.getApplicationContext()));
+  }
+
+  private void warmUp(int port, String path) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+      try (InputStream body = connection.getInputStream()) {
+        body.readAllBytes();
+      }
+      finally {
+        connection.disconnect();
+      }
+    }
+    catch (IOException e) {
+      log.warn("Training request to {} failed", path, e);
+    }
+  }
+}
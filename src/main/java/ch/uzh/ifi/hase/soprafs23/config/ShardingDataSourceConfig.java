@@ -0,0 +1,100 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRoutingDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sharding Data Source
+ * Only active with user.shards.count > 1. Creates one H2 database per shard
+ * (user.shards.url with the shard number) behind a routing data source. The
+ * lazy proxy only fetches the physical connection at the first statement, by
+ * then ShardRouter has selected the shard of the transaction.
+ *
+ * Hibernate creates the schema on shard 0 only. The other shards get a copy of
+ * it unless they already have the user table, and every shard gets its own id
+ * sequence (see ShardRouter), continuing after the largest id already stored.
+ * With persistent shard URLs set spring.jpa.hibernate.ddl-auto=update, so the
+ * schema of shard 0 survives a restart.
+ */
+@Configuration
+@ConditionalOnExpression("${user.shards.count:1} > 1")
+public class ShardingDataSourceConfig {
+
+  private final Logger log = LoggerFactory.getLogger(ShardingDataSourceConfig.class);
+
+  private final int shardCount;
+  private final String shardUrl;
+  private final List<DataSource> shards = new ArrayList<>();
+
+  public ShardingDataSourceConfig(@Value("${user.shards.count}") int shardCount,
+                                  @Value("${user.shards.url:jdbc:h2:mem:users-shard-%d;DB_CLOSE_ON_EXIT=FALSE}") String shardUrl) {
+    this.shardCount = shardCount;
+    this.shardUrl = shardUrl;
+  }
+
+  @Bean
+  @Primary
+  public DataSource dataSource(DataSourceProperties properties) {
+    Map<Object, Object> targetDataSources = new HashMap<>();
+    for (int shard = 0; shard < shardCount; shard++) {
+      DataSource dataSource = properties.initializeDataSourceBuilder().url(String.format(shardUrl, shard)).build();
+      shards.add(dataSource);
+      targetDataSources.put(shard, dataSource);
+    }
+    ShardRoutingDataSource routingDataSource = new ShardRoutingDataSource();
+    routingDataSource.setTargetDataSources(targetDataSources);
+    routingDataSource.setDefaultTargetDataSource(shards.get(0));
+    routingDataSource.afterPropertiesSet();
+    return new LazyConnectionDataSourceProxy(routingDataSource);
+  }
+
+  // the entity manager factory is only injected so Hibernate has created the schema on shard 0
+  @Bean
+  public InitializingBean shardSchemaInitializer(EntityManagerFactory entityManagerFactory) {
+    return () -> {
+      List<String> schema = new ArrayList<>();
+      for (String statement : new JdbcTemplate(shards.get(0)).queryForList("script nodata", String.class)) {
+        if (!statement.startsWith("--")) {
+          schema.add(statement);
+        }
+      }
+      for (int shard = 0; shard < shardCount; shard++) {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(shards.get(shard));
+        if (shard > 0 && !hasUserTable(jdbcTemplate)) {
+          schema.forEach(jdbcTemplate::execute);
+        }
+        long maxId = jdbcTemplate.queryForObject("select coalesce(max(id), 0) from user", Long.class);
+        jdbcTemplate.execute("alter sequence hibernate_sequence restart with " + firstFreeId(shard, maxId)
+            + " increment by " + shardCount);
+      }
+      log.info("Initialized {} user shards", shardCount);
+    };
+  }
+
+  private static boolean hasUserTable(JdbcTemplate jdbcTemplate) {
+    return jdbcTemplate.queryForObject(
+        "select count(*) from information_schema.tables where table_name = 'USER'", Integer.class) > 0;
+  }
+
+  // the smallest id above maxId that belongs to the shard, ids of shard k are k + 1 modulo the shard count
+  private long firstFreeId(int shard, long maxId) {
+    return maxId + 1 + Math.floorMod(shard - maxId, (long) shardCount);
+  }
+}
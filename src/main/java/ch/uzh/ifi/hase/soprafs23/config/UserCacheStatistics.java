@@ -0,0 +1,61 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * User Cache Statistics
+ * Periodically logs the hit ratio of the second-level cache regions used for
+ * users. Only active if hibernate.generate_statistics is enabled, otherwise
+ * Hibernate does not collect any numbers and nothing is logged. Regions of a
+ * disabled cache do not exist and are skipped.
+ */
+@Component
+@Lazy(false)
+public class UserCacheStatistics {
+
+  private static final String[] REGIONS = { "user", "user-by-username" };
+
+  private final Logger log = LoggerFactory.getLogger(UserCacheStatistics.class);
+
+  private final Statistics statistics;
+  private final boolean secondLevelCacheEnabled;
+  private final boolean queryCacheEnabled;
+
+  public UserCacheStatistics(EntityManagerFactory entityManagerFactory) {
+    SessionFactory sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+    this.statistics = sessionFactory.getStatistics();
+    this.secondLevelCacheEnabled = sessionFactory.getSessionFactoryOptions().isSecondLevelCacheEnabled();
+    this.queryCacheEnabled = sessionFactory.getSessionFactoryOptions().isQueryCacheEnabled();
+  }
+
+  @Scheduled(fixedDelayString = "${user.cache.statistics-interval:60000}")
+  public void logHitRatios() {
+    if (!statistics.isStatisticsEnabled()) {
+      return;
+    }
+    for (String region : REGIONS) {
+      if (!(region.equals("user") ? secondLevelCacheEnabled : queryCacheEnabled)) {
+        continue;
+      }
+      CacheRegionStatistics regionStatistics = region.equals("user")
+          ? statistics.getDomainDataRegionStatistics(region)
+          : statistics.getQueryRegionStatistics(region);
+      if (regionStatistics == null) {
+        continue;
+      }
+      long hits = regionStatistics.getHitCount();
+      long misses = regionStatistics.getMissCount();
+      double ratio = hits + misses == 0 ? 0.0 : (double) hits / (hits + misses);
+      log.info("Cache region {}: {} hits, {} misses, hit ratio {}", region, hits, misses, String.format("%.3f", ratio));
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Virtual Thread Mode
+ * With spring.threads.virtual.enabled=true (Java 21 only, same name as the
+ * property of newer Spring Boot versions) Tomcat handles every
+ * request on its own virtual thread, and async tasks (e.g. asynchronous MVC
+ * requests) run on virtual threads too. A request blocked on the database
+ * then no longer holds a platform thread, so server.tomcat.threads.max stops
+ * being the ceiling on concurrency; the connection pool becomes the limit.
+ * The chat handler reads the same property for its sends (see WebSocketConfig).
+ */
+@Configuration
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadConfig implements DisposableBean {
+
+  private final ExecutorService requestExecutor = VirtualThreads.newThreadPerTaskExecutor("http-virtual-");
+  private final ExecutorService taskExecutor = VirtualThreads.newThreadPerTaskExecutor("task-virtual-");
+
+  @Bean
+  public WebServerFactoryCustomizer<TomcatServletWebServerFactory> virtualThreadTomcatCustomizer() {
+    return factory -> factory.addProtocolHandlerCustomizers(protocolHandler -> protocolHandler.setExecutor(requestExecutor));
+  }
+
+  // replaces the thread pool Spring Boot would create under this name
+  @Bean(name = TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+  public AsyncTaskExecutor applicationTaskExecutor() {
+    return new TaskExecutorAdapter(taskExecutor);
+  }
+
+  @Override
+  public void destroy() {
+    requestExecutor.shutdownNow();
+    taskExecutor.shutdownNow();
+  }
+}
@@ -0,0 +1,83 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual Threads
+ * The classes are compiled for Java 17 (Spring 5.3 cannot read newer class
+ * files), so the Java 21 virtual thread API is looked up at runtime.
+ */
+public final class VirtualThreads {
+
+  private static final MethodHandle OF_VIRTUAL;
+  private static final MethodHandle NAME;
+  private static final MethodHandle FACTORY;
+
+  static {
+    MethodHandle ofVirtual = null;
+    MethodHandle name = null;
+    MethodHandle factory = null;
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Class<?> virtualBuilderClass = Class.forName("java.lang.Thread$Builder$OfVirtual");
+      ofVirtual = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(virtualBuilderClass));
+      name = lookup.findVirtual(virtualBuilderClass, "name",
+          MethodType.methodType(virtualBuilderClass, String.class, long.class));
+      factory = lookup.findVirtual(builderClass, "factory", MethodType.methodType(ThreadFactory.class));
+    }
+    catch (ReflectiveOperationException e) {
+      // running on a JDK without virtual threads
+    }
+    OF_VIRTUAL = ofVirtual;
+    NAME = name;
+    FACTORY = factory;
+  }
+
+  private VirtualThreads() {
+  }
+
+  public static boolean isSupported() {
+    return OF_VIRTUAL != null;
+  }
+
+  /**
+   * @return a factory for virtual threads named prefix0, prefix1, ...
+   * @throws IllegalStateException if the JDK has no virtual threads
+   */
+  public static ThreadFactory factory(String prefix) {
+    if (!isSupported()) {
+      throw new IllegalStateException("Virtual threads need Java 21 or newer, running on "
+          + System.getProperty("java.version"));
+    }
+    try {
+      Object builder = OF_VIRTUAL.invoke();
+      builder = NAME.invoke(builder, prefix, 0L);
+      return (ThreadFactory) FACTORY.invoke(builder);
+    }
+    catch (Throwable e) {
+      throw new IllegalStateException("Creating a virtual thread factory failed", e);
+    }
+  }
+
+  /**
+   * @return an executor that starts a new virtual thread for every task
+   */
+  public static ExecutorService newThreadPerTaskExecutor(String prefix) {
+    ThreadFactory factory = factory(prefix);
+    try {
+      return (ExecutorService) MethodHandles.publicLookup()
+          .findStatic(Executors.class, "newThreadPerTaskExecutor",
+              MethodType.methodType(ExecutorService.class, ThreadFactory.class))
+          .invoke(factory);
+    }
+    catch (Throwable e) {
+      throw new IllegalStateException("Creating a virtual thread executor failed", e);
+    }
+  }
+}
@@ -0,0 +1,5 @@
+package ch.uzh.ifi.hase.soprafs23.constant;
+
+public enum UserEventType {
+  CREATE, LOGIN, PROFILE_EDIT, LOGOUT, SESSION_EXPIRED;
+}
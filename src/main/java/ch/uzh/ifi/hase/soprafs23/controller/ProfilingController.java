@@ -0,0 +1,89 @@
+package ch.uzh.ifi.hase.soprafs23.controller;
+
+import ch.uzh.ifi.hase.soprafs23.exceptions.AdminAccessDeniedException;
+import ch.uzh.ifi.hase.soprafs23.service.ProfilingService;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Profiling Controller
+ * POST /admin/profiles records the running service with JDK Flight Recorder for
+ * the given number of seconds and returns the .jfr file, or with summary=true
+ * the hottest and most allocating frames of the application as JSON.
+ * Requests need the X-Admin-Token header with the value of admin.token; without
+ * a configured token the endpoint rejects every request.
+ * The request stays open while recording, longer than the default async timeout
+ * of the servlet container allows: it times out only after the longest possible
+ * recording (admin.profiling.max-duration) plus time to read or summarize it.
+ */
+@RestController
+public class ProfilingController {
+
+  // reading or summarizing the stopped recording
+  static final long RESPONSE_MARGIN_MILLIS = 30_000;
+
+  private final ProfilingService profilingService;
+  private final byte[] adminToken;
+  private final long timeoutMillis;
+
+  ProfilingController(ProfilingService profilingService, @Value("${admin.token:}") String adminToken,
+                      @Value("${admin.profiling.max-duration:60000}") long maxDurationMillis) {
+    this.profilingService = profilingService;
+    this.adminToken = adminToken.getBytes(StandardCharsets.UTF_8);
+    this.timeoutMillis = maxDurationMillis + RESPONSE_MARGIN_MILLIS;
+  }
+
+  @PostMapping("/admin/profiles")
+  public DeferredResult<ResponseEntity<?>> recordProfile(
+          @RequestHeader(value = "X-Admin-Token", required = false) String token,
+          @RequestParam(defaultValue = "30") long seconds,
+          @RequestParam(defaultValue = "false") boolean summary) {
+    if (adminToken.length == 0 || token == null
+            || !MessageDigest.isEqual(adminToken, token.getBytes(StandardCharsets.UTF_8))) {
+      throw new AdminAccessDeniedException();
+    }
+    long durationMillis = seconds * 1000;
+    DeferredResult<ResponseEntity<?>> response = new DeferredResult<>(timeoutMillis);
+    profilingService.record(durationMillis).thenApply(recordingFile -> {
+      try {
+        if (summary) {
+          return ResponseEntity.ok(profilingService.summarize(recordingFile, durationMillis));
+        }
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .header(HttpHeaders.CONTENT_DISPOSITION,
+                        ContentDisposition.attachment().filename("profile.jfr").build().toString())
+                .body(Files.readAllBytes(recordingFile));
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      finally {
+        profilingService.deleteRecording(recordingFile);
+      }
+    }).whenComplete((body, e) -> {
+      if (e != null) {
+        response.setErrorResult(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+      }
+      else {
+        response.setResult(body);
+      }
+    });
+    return response;
+  }
+}
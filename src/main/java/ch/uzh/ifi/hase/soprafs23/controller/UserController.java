@@ -1,100 +1,216 @@
-package ch.uzh.ifi.hase.soprafs23.controller;
-
-import ch.uzh.ifi.hase.soprafs23.entity.User;
-import ch.uzh.ifi.hase.soprafs23.rest.dto.UserGetDTO;
-import ch.uzh.ifi.hase.soprafs23.rest.dto.UserPostDTO;
-import ch.uzh.ifi.hase.soprafs23.rest.dto.UserPutDTO;
-import ch.uzh.ifi.hase.soprafs23.rest.mapper.DTOMapper;
-import ch.uzh.ifi.hase.soprafs23.service.UserService;
-import org.springframework.http.HttpStatus;
-import org.springframework.web.bind.annotation.*;
-
-import java.util.ArrayList;
-import java.util.List;
-
-/**
- * User Controller
- * This class is responsible for handling all REST request that are related to
- * the user.
- * The controller will receive the request and delegate the execution to the
- * UserService and finally return the result.
- */
-@RestController
-public class UserController {
-
-  private final UserService userService;
-
-  UserController(UserService userService) {
-    this.userService = userService;
-  }
-
-  @GetMapping("/users")
-    @ResponseStatus(HttpStatus.OK)
-    @ResponseBody
-    public List<UserGetDTO> getAllUsers() {
-        // fetch all users in the internal representation
-        List<User> users = userService.getUsers();
-        List<UserGetDTO> userGetDTOs = new ArrayList<>();
-
-        // convert each user to the API representation
-        for (User user : users) {
-            userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
-        }
-        return userGetDTOs;
-    }
-
-    @GetMapping("/users/{userId}")
-    @ResponseStatus(HttpStatus.OK)
-    @ResponseBody
-    public UserGetDTO getUserProfile(@PathVariable Long userId){
-
-        // fetch the user in the internal representation
-        User user = userService.getUserProfile(userId);
-
-        // convert user to the API representation and return that
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
-    }
-
-  @PostMapping("/users")
-  @ResponseStatus(HttpStatus.CREATED)
-  @ResponseBody
-  public UserGetDTO createUser(@RequestBody UserPostDTO userPostDTO) {
-    // convert API user to internal representation
-    User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
-
-    // create user
-    User createdUser = userService.createUser(userInput);
-    // convert internal representation of user back to API
-    return DTOMapper.INSTANCE.convertEntityToUserGetDTO(createdUser);
-  }
-
-    @PostMapping("/user-logins")
-    @ResponseStatus(HttpStatus.CREATED)
-    @ResponseBody
-    public UserGetDTO loginUser(@RequestBody UserPostDTO userPostDTO) {
-        // convert API user to internal representation
-        User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
-
-        // compare credentials with database
-        User existingUser = userService.checkIfUserExistsReverse(userInput);
-
-        // convert internal representation of user back to API
-        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(existingUser);
-    }
-
-    @PutMapping("/users/{userId}")
-    @ResponseStatus(HttpStatus.RESET_CONTENT)
-    @ResponseBody
-    public void editProfile(@PathVariable Long userId, @RequestBody UserPutDTO userPutDTO){
-        // convert API user to internal representation
-      User userInput = DTOMapper.INSTANCE.convertUserPutDTOtoEntity(userPutDTO);
-
-      userService.putChanges(userId, userInput);
-    }
-
-    @PutMapping("/user-logouts/{userId}")
-    @ResponseStatus(HttpStatus.OK)
-    @ResponseBody public void updateUser(@PathVariable Long userId) {
-      userService.setOffline(userId);
-  }
+package ch.uzh.ifi.hase.soprafs23.controller;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.UserPostDTO;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.UserPutDTO;
+import ch.uzh.ifi.hase.soprafs23.rest.mapper.DTOMapper;
+import ch.uzh.ifi.hase.soprafs23.service.UserListResponseCache;
+import ch.uzh.ifi.hase.soprafs23.service.UserService;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * User Controller
+ * This class is responsible for handling all REST request that are related to
+ * the user.
+ * The controller will receive the request and delegate the execution to the
+ * UserService and finally return the result.
+ */
+@RestController
+public class UserController {
+
+  private static final MediaType SMILE = MediaType.valueOf("application/x-jackson-smile");
+
+  private final UserService userService;
+  private final UserListResponseCache userListResponseCache;
+
+  UserController(UserService userService, UserListResponseCache userListResponseCache) {
+    this.userService = userService;
+    this.userListResponseCache = userListResponseCache;
+  }
+
+  @GetMapping("/users")
+    @ResponseBody
+    public ResponseEntity<?> getAllUsers(@RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+                                         @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false)
+                                                 String acceptEncoding) {
+        // JSON clients get the pre-serialized list as it is
+        UserListResponseCache.Snapshot snapshot = userListResponseCache.getSnapshot();
+        if (snapshot != null && prefersJson(accept)) {
+            ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+            if (acceptsGzip(acceptEncoding)) {
+                return response.header(HttpHeaders.CONTENT_ENCODING, "gzip").body(snapshot.getGzippedJson());
+            }
+            return response.body(snapshot.getJson());
+        }
+
+        // fetch all users in the internal representation
+        List<User> users = userService.getUsers();
+        List<UserGetDTO> userGetDTOs = new ArrayList<>();
+
+        // convert each user to the API representation
+        for (User user : users) {
+            userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+        }
+        return ResponseEntity.ok(userGetDTOs);
+    }
+
+    @GetMapping("/users/birthdays")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public List<UserGetDTO> getUpcomingBirthdays(
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam(defaultValue = "7") int days) {
+        if (days < 1 || days > 366) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "days must be between 1 and 366");
+        }
+        List<UserGetDTO> userGetDTOs = new ArrayList<>();
+        for (User user : userService.getUpcomingBirthdays(from != null ? from : LocalDate.now(), days)) {
+            userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+        }
+        return userGetDTOs;
+    }
+
+    @GetMapping("/users/{userId}")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public UserGetDTO getUserProfile(@PathVariable Long userId){
+
+        // fetch the user in the internal representation
+        User user = userService.getUserProfile(userId);
+
+        // convert user to the API representation and return that
+        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(user);
+    }
+
+  @PostMapping("/users")
+  @ResponseStatus(HttpStatus.CREATED)
+  @ResponseBody
+  public UserGetDTO createUser(@RequestBody UserPostDTO userPostDTO) {
+    // convert API user to internal representation
+    User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+
+    // create user
+    User createdUser = userService.createUser(userInput);
+    // convert internal representation of user back to API
+    return DTOMapper.INSTANCE.convertEntityToUserGetDTO(createdUser);
+  }
+
+    @PostMapping("/user-logins")
+    @ResponseStatus(HttpStatus.CREATED)
+    @ResponseBody
+    public UserGetDTO loginUser(@RequestBody UserPostDTO userPostDTO) {
+        // convert API user to internal representation
+        User userInput = DTOMapper.INSTANCE.convertUserPostDTOtoEntity(userPostDTO);
+
+        // compare credentials with database
+        User existingUser = userService.checkIfUserExistsReverse(userInput);
+
+        // convert internal representation of user back to API
+        return DTOMapper.INSTANCE.convertEntityToUserGetDTO(existingUser);
+    }
+
+    @PutMapping("/users/{userId}")
+    @ResponseStatus(HttpStatus.RESET_CONTENT)
+    @ResponseBody
+    public void editProfile(@PathVariable Long userId, @RequestBody UserPutDTO userPutDTO){
+        // convert API user to internal representation
+      User userInput = DTOMapper.INSTANCE.convertUserPutDTOtoEntity(userPutDTO);
+
+      userService.putChanges(userId, userInput);
+    }
+
+    @PutMapping("/user-logouts/{userId}")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody public void updateUser(@PathVariable Long userId) {
+      userService.setOffline(userId);
+  }
+
+    @PutMapping("/user-logouts")
+    @ResponseStatus(HttpStatus.OK)
+    @ResponseBody
+    public void logoutUsers(@RequestBody List<Long> userIds) {
+        userService.setOffline(userIds);
+    }
+
+    // true if the Accept-Encoding header allows gzip: listed as gzip or x-gzip, or covered by *, with a q-value above 0
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        Double gzipQuality = null;
+        Double anyQuality = null;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.length() > 2 && parameter.substring(0, 2).equalsIgnoreCase("q=")) {
+                    quality = parseQuality(parameter.substring(2).trim());
+                }
+            }
+            if (coding.equals("gzip") || coding.equals("x-gzip")) {
+                gzipQuality = gzipQuality == null ? quality : Math.max(gzipQuality, quality);
+            }
+            else if (coding.equals("*")) {
+                anyQuality = quality;
+            }
+        }
+        // an explicit gzip entry wins over *
+        if (gzipQuality != null) {
+            return gzipQuality > 0;
+        }
+        return anyQuality != null && anyQuality > 0;
+    }
+
+    // a malformed q-value counts as 0, the client gets the uncompressed body
+    private static double parseQuality(String value) {
+        try {
+            double quality = Double.parseDouble(value);
+            return quality >= 0 && quality <= 1 ? quality : 0;
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // true if the client takes JSON (or anything) over the binary formats
+    private static boolean prefersJson(String accept) {
+        if (accept == null || accept.isBlank()) {
+            return true;
+        }
+        List<MediaType> acceptedTypes;
+        try {
+            acceptedTypes = MediaType.parseMediaTypes(accept);
+        }
+        catch (InvalidMediaTypeException e) {
+            return false;
+        }
+        MediaType.sortBySpecificityAndQuality(acceptedTypes);
+        for (MediaType acceptedType : acceptedTypes) {
+            if (acceptedType.isCompatibleWith(MediaType.APPLICATION_JSON)) {
+                return true;
+            }
+            if (acceptedType.isCompatibleWith(MediaType.APPLICATION_CBOR)
+                    || acceptedType.isCompatibleWith(SMILE)) {
+                return false;
+            }
+        }
+        return false;
+    }
 }
\ No newline at end of file
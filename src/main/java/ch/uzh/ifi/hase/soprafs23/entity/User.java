@@ -1,10 +1,14 @@
 package ch.uzh.ifi.hase.soprafs23.entity;
 
 import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.io.Serializable;
+import java.text.Normalizer;
 import java.time.LocalDate;
+import java.util.Locale;
 
 /**
  * Internal User Representation
@@ -15,13 +19,32 @@ import java.time.LocalDate;
  * - nullable = false -> this cannot be left empty
  * - unique = true -> this value must be unqiue across the database -> composes
  * the primary key
+ * Users are kept in the second-level cache (region "user"), so repeated
+ * findById calls for the same user do not hit the database. Writes are single
+ * UPDATE statements that evict only the written users (see UserUpdateRepository).
+ * birthdayDayOfYear is derived from birthday by setBirthday and indexed, so
+ * upcoming birthdays are found without scanning the table.
+ * usernameNormalized is derived from username by setUsername. Its unique index
+ * makes usernames unique regardless of case and Unicode representation, and
+ * logins look users up by it.
  */
 @Entity
-@Table(name = "USER")
+@Table(name = "USER",
+    uniqueConstraints = {
+        @UniqueConstraint(name = User.UNIQUE_USERNAME, columnNames = "username"),
+        @UniqueConstraint(name = User.UNIQUE_USERNAME_NORMALIZED, columnNames = "username_normalized"),
+        @UniqueConstraint(name = "UK_USER_TOKEN", columnNames = "token") },
+    indexes = @Index(name = "IDX_USER_BIRTHDAY_DAY_OF_YEAR", columnList = "birthday_day_of_year"))
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "user")
 public class User implements Serializable {
 
   private static final long serialVersionUID = 1L;
 
+  // names of the unique constraints that make a username taken
+  public static final String UNIQUE_USERNAME = "UK_USER_USERNAME";
+  public static final String UNIQUE_USERNAME_NORMALIZED = "UK_USER_USERNAME_NORMALIZED";
+
   @Id
   @GeneratedValue
   private Long id;
@@ -29,10 +52,14 @@ public class User implements Serializable {
   @Column(nullable = false)
   private String password;
 
-  @Column(nullable = false, unique = true)
+  @Column(nullable = false)
   private String username;
 
-  @Column(nullable = false, unique = true)
+  // nullable for rows from before the column existed, UsernameNormalizationBackfill fills them in
+  @Column(name = "username_normalized")
+  private String usernameNormalized;
+
+  @Column(nullable = false)
   private String token;
 
   @Column(nullable = false)
@@ -44,6 +71,25 @@ public class User implements Serializable {
   @Column
   private LocalDate birthday;
 
+  // day of the birthday in a leap year (1 - 366), the same for every year of birth
+  @Column(name = "birthday_day_of_year")
+  private Integer birthdayDayOfYear;
+
+  /* A detached copy with the same field values, changing it does not change this user or the database. */
+  public User copy() {
+    User copy = new User();
+    copy.id = id;
+    copy.password = password;
+    copy.username = username;
+    copy.usernameNormalized = usernameNormalized;
+    copy.token = token;
+    copy.status = status;
+    copy.creationDate = creationDate;
+    copy.birthday = birthday;
+    copy.birthdayDayOfYear = birthdayDayOfYear;
+    return copy;
+  }
+
   public Long getId() {
     return id;
   }
@@ -66,6 +112,20 @@ public class User implements Serializable {
 
   public void setUsername(String username) {
     this.username = username;
+    this.usernameNormalized = normalizeUsername(username);
+  }
+
+  public String getUsernameNormalized() {
+    return usernameNormalized;
+  }
+
+  /* NFKC normalization and locale independent case folding, so "Alice", "ALICE" and "ａｌｉｃｅ" are the same name. */
+  public static String normalizeUsername(String username) {
+    if (username == null) {
+      return null;
+    }
+    // upper then lower case also folds characters like "ß" (-> "SS" -> "ss")
+    return Normalizer.normalize(username, Normalizer.Form.NFKC).toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
   }
 
   public String getToken() {
@@ -98,5 +158,15 @@ public class User implements Serializable {
 
     public void setBirthday(LocalDate birthday) {
         this.birthday = birthday;
+        this.birthdayDayOfYear = birthdayDayOfYear(birthday);
+    }
+
+    public Integer getBirthdayDayOfYear() {
+        return birthdayDayOfYear;
+    }
+
+    /* Day of the date in a leap year, so February 29 is day 60 and March 1 is always day 61. */
+    public static Integer birthdayDayOfYear(LocalDate date) {
+        return date == null ? null : date.withYear(2000).getDayOfYear();
     }
 }
@@ -0,0 +1,13 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class AdminAccessDeniedException extends DomainException {
+
+  private static final ErrorResponse ACCESS_DENIED = ErrorResponse.of(HttpStatus.FORBIDDEN,
+      "The admin token is missing or wrong");
+
+  public AdminAccessDeniedException() {
+    super(ACCESS_DENIED);
+  }
+}
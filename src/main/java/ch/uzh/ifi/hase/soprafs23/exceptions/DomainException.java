@@ -0,0 +1,31 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Domain Exception
+ * Base class for expected errors that happen often (failed logins, unknown users,
+ * taken usernames). They are still ResponseStatusExceptions, but they do not
+ * capture a stack trace and carry a preallocated ErrorResponse, which
+ * GlobalExceptionAdvice writes without any formatting.
+ */
+public abstract class DomainException extends ResponseStatusException {
+
+  private final transient ErrorResponse errorResponse;
+
+  protected DomainException(ErrorResponse errorResponse) {
+    super(errorResponse.getStatus(), errorResponse.getMessage());
+    this.errorResponse = errorResponse;
+  }
+
+  public ErrorResponse getErrorResponse() {
+    return errorResponse;
+  }
+
+  // the stack trace of an expected error is never looked at, so it is not captured at all;
+  // not synchronized, nothing is filled in and request threads should not take a monitor here
+  @Override
+  public Throwable fillInStackTrace() {
+    return this;
+  }
+}
@@ -0,0 +1,46 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Error Response
+ * A preallocated error body for frequent errors. The JSON is rendered once when
+ * the constant is created and the same bytes are written for every response.
+ * The fields match the ones of the default Spring error body that clients read.
+ */
+public final class ErrorResponse {
+
+  private final HttpStatus status;
+  private final String message;
+  private final byte[] body;
+
+  private ErrorResponse(HttpStatus status, String message) {
+    this.status = status;
+    this.message = message;
+    this.body = ("{\"status\":" + status.value()
+        + ",\"error\":\"" + escape(status.getReasonPhrase())
+        + "\",\"message\":\"" + escape(message) + "\"}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  public static ErrorResponse of(HttpStatus status, String message) {
+    return new ErrorResponse(status, message);
+  }
+
+  public HttpStatus getStatus() {
+    return status;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+
+  public byte[] getBody() {
+    return body;
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"");
+  }
+}
@@ -4,6 +4,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.TransactionSystemException;
 import org.springframework.web.bind.annotation.ControllerAdvice;
@@ -27,6 +28,15 @@ public class GlobalExceptionAdvice extends ResponseEntityExceptionHandler {
     return handleExceptionInternal(ex, bodyOfResponse, new HttpHeaders(), HttpStatus.CONFLICT, request);
   }
 
+  // frequent, expected errors: write the preallocated body, nothing is formatted or logged
+  @ExceptionHandler(DomainException.class)
+  protected ResponseEntity<byte[]> handleDomainException(DomainException ex) {
+    ErrorResponse errorResponse = ex.getErrorResponse();
+    return ResponseEntity.status(errorResponse.getStatus())
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(errorResponse.getBody());
+  }
+
   @ExceptionHandler(TransactionSystemException.class)
   public ResponseStatusException handleTransactionSystemException(Exception ex, HttpServletRequest request) {
     log.error("Request: {} raised {}", request.getRequestURL(), ex);
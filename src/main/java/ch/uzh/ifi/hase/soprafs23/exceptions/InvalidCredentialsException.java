@@ -0,0 +1,13 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class InvalidCredentialsException extends DomainException {
+
+  private static final ErrorResponse INVALID_CREDENTIALS = ErrorResponse.of(HttpStatus.BAD_REQUEST,
+      "Sorry, your username or password was incorrect. Please double-check your credentials");
+
+  public InvalidCredentialsException() {
+    super(INVALID_CREDENTIALS);
+  }
+}
@@ -0,0 +1,13 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class ProfilingInProgressException extends DomainException {
+
+  private static final ErrorResponse IN_PROGRESS = ErrorResponse.of(HttpStatus.CONFLICT,
+      "A profiling recording is already running, please try again when it is finished");
+
+  public ProfilingInProgressException() {
+    super(IN_PROGRESS);
+  }
+}
@@ -0,0 +1,14 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class ServiceOverloadedException extends DomainException {
+
+  // also written by AdmissionControlFilter, which rejects requests before they reach a handler
+  public static final ErrorResponse OVERLOADED = ErrorResponse.of(HttpStatus.SERVICE_UNAVAILABLE,
+      "The service is overloaded, please try again later");
+
+  public ServiceOverloadedException() {
+    super(OVERLOADED);
+  }
+}
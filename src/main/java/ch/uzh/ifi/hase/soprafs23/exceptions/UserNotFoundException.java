@@ -0,0 +1,12 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class UserNotFoundException extends DomainException {
+
+  private static final ErrorResponse NOT_FOUND = ErrorResponse.of(HttpStatus.NOT_FOUND, "user was not found");
+
+  public UserNotFoundException() {
+    super(NOT_FOUND);
+  }
+}
@@ -0,0 +1,23 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import org.springframework.http.HttpStatus;
+
+public class UsernameNotUniqueException extends DomainException {
+
+  private static final ErrorResponse ON_CREATE = ErrorResponse.of(HttpStatus.CONFLICT,
+      "add User failed because username already exists");
+  private static final ErrorResponse ON_RENAME = ErrorResponse.of(HttpStatus.BAD_REQUEST,
+      "The username provided is not unique. Therefore, the username could not be changed!");
+
+  private UsernameNotUniqueException(ErrorResponse errorResponse) {
+    super(errorResponse);
+  }
+
+  public static UsernameNotUniqueException onCreate() {
+    return new UsernameNotUniqueException(ON_CREATE);
+  }
+
+  public static UsernameNotUniqueException onRename() {
+    return new UsernameNotUniqueException(ON_RENAME);
+  }
+}
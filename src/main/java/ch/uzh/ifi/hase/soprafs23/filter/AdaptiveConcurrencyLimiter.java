@@ -0,0 +1,126 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive Concurrency Limiter
+ * Limits the number of requests in flight with an AIMD limit driven by latency.
+ * Requests are grouped into routes whose latencies are alike (e.g. logins, which
+ * hash a password, and profile reads). The lowest latency seen on a route
+ * (its minRtt) approximates that route's latency on an idle service, so a slow
+ * route is not mistaken for congestion of a fast one. While requests finish
+ * within tolerance * minRtt of their route and the limit is actually used,
+ * the limit grows by one per limit requests (additive increase). A slower request
+ * or one that failed because of overload shrinks it by the backoff factor
+ * (multiplicative decrease), at most once per limit requests so a burst of slow
+ * responses does not collapse it.
+ *
+ * Lower priorities may only use a share of the limit, so they are shed first and
+ * leave room for higher priorities. Updates of the limit are skipped instead of
+ * waited for when another thread is updating it, so admission never blocks.
+ */
+public class AdaptiveConcurrencyLimiter {
+
+  public enum Priority {
+    // logouts free resources and must never wait behind new work
+    CRITICAL(1.0),
+    READ(0.9),
+    WRITE(0.8),
+    CREATE(0.7);
+
+    private final double share;
+
+    Priority(double share) {
+      this.share = share;
+    }
+  }
+
+  private static final double TOLERANCE = 2.0;
+  private static final double BACKOFF = 0.9;
+  // minRtt drifts up by this factor every MIN_RTT_DECAY_SAMPLES samples to relearn a changed baseline
+  private static final double MIN_RTT_DECAY = 1.1;
+  private static final int MIN_RTT_DECAY_SAMPLES = 1000;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final ReentrantLock updateLock = new ReentrantLock();
+
+  private volatile double limit;
+  // guarded by updateLock, the baselines are indexed by route
+  private final long[] minRttNanos;
+  private final int[] samples;
+  private int samplesSinceDecrease;
+
+  /**
+   * @param routes number of routes, release() takes a route between 0 and routes - 1
+   */
+  public AdaptiveConcurrencyLimiter(int routes, int initialLimit, int minLimit, int maxLimit) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.minRttNanos = new long[routes];
+    this.samples = new int[routes];
+    Arrays.fill(minRttNanos, Long.MAX_VALUE);
+  }
+
+  /**
+   * @return true if the request may run, it then has to call release() when done
+   */
+  public boolean tryAcquire(Priority priority) {
+    int allowed = Math.max(1, (int) (limit * priority.share));
+    while (true) {
+      int current = inFlight.get();
+      if (current >= allowed) {
+        return false;
+      }
+      if (inFlight.compareAndSet(current, current + 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * @param route the route of the request, its latency is compared with that route's baseline only
+   * @param rttNanos how long the request took
+   * @param overloaded true if the request failed because a downstream resource was exhausted
+   */
+  public void release(int route, long rttNanos, boolean overloaded) {
+    int inFlightBefore = inFlight.getAndDecrement();
+    if (!updateLock.tryLock()) {
+      return;
+    }
+    try {
+      if (++samples[route] % MIN_RTT_DECAY_SAMPLES == 0 && minRttNanos[route] != Long.MAX_VALUE) {
+        minRttNanos[route] = (long) (minRttNanos[route] * MIN_RTT_DECAY);
+      }
+      minRttNanos[route] = Math.min(minRttNanos[route], Math.max(1, rttNanos));
+      samplesSinceDecrease++;
+
+      double currentLimit = limit;
+      if (overloaded || rttNanos > TOLERANCE * minRttNanos[route]) {
+        if (samplesSinceDecrease >= currentLimit) {
+          limit = Math.max(minLimit, currentLimit * BACKOFF);
+          samplesSinceDecrease = 0;
+        }
+      }
+      else if (inFlightBefore * 2 >= currentLimit) {
+        // only grow while at least half of the limit is used, an idle service learns nothing about its capacity
+        limit = Math.min(maxLimit, currentLimit + 1 / currentLimit);
+      }
+    }
+    finally {
+      updateLock.unlock();
+    }
+  }
+
+  public int getLimit() {
+    return (int) limit;
+  }
+
+  public int getInFlight() {
+    return inFlight.get();
+  }
+}
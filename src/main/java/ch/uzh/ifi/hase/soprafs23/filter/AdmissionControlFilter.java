@@ -0,0 +1,123 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import ch.uzh.ifi.hase.soprafs23.exceptions.ErrorResponse;
+import ch.uzh.ifi.hase.soprafs23.exceptions.ServiceOverloadedException;
+import ch.uzh.ifi.hase.soprafs23.filter.AdaptiveConcurrencyLimiter.Priority;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Admission Control Filter
+ * Puts an AdaptiveConcurrencyLimiter in front of the user API. Requests above
+ * the current limit are rejected right away with 503 instead of queueing on
+ * Tomcat threads. Logouts have the highest priority, then reads, then other
+ * writes; registrations are shed first. Every Route has its own latency
+ * baseline, because logins and registrations hash a password and take far
+ * longer than the other requests. Runs before the rate limit filter, so shed
+ * requests cost no body parsing.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 100)
+public class AdmissionControlFilter extends OncePerRequestFilter {
+
+  enum Route {
+    LOGOUT(Priority.CRITICAL),
+    READ(Priority.READ),
+    LOGIN(Priority.WRITE),
+    EDIT(Priority.WRITE),
+    REGISTRATION(Priority.CREATE);
+
+    private final Priority priority;
+
+    Route(Priority priority) {
+      this.priority = priority;
+    }
+  }
+
+  private final boolean enabled;
+  private final AdaptiveConcurrencyLimiter limiter;
+  private final Counter rejectedRequests;
+
+  public AdmissionControlFilter(@Value("${user.admission.enabled:true}") boolean enabled,
+                                @Value("${user.admission.initial-limit:20}") int initialLimit,
+                                @Value("${user.admission.min-limit:4}") int minLimit,
+                                @Value("${user.admission.max-limit:200}") int maxLimit,
+                                ObjectProvider<MeterRegistry> meterRegistries) {
+    this.enabled = enabled;
+    this.limiter = new AdaptiveConcurrencyLimiter(Route.values().length, initialLimit, minLimit, maxLimit);
+    // web slice tests have no meter registry
+    MeterRegistry meterRegistry = meterRegistries.getIfAvailable(SimpleMeterRegistry::new);
+    Gauge.builder("user.admission.limit", limiter, AdaptiveConcurrencyLimiter::getLimit).register(meterRegistry);
+    Gauge.builder("user.admission.in-flight", limiter, AdaptiveConcurrencyLimiter::getInFlight).register(meterRegistry);
+    this.rejectedRequests = meterRegistry.counter("user.admission.rejected");
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    if (!enabled) {
+      return true;
+    }
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    return !path.startsWith("/users") && !path.startsWith("/user-logins") && !path.startsWith("/user-logouts");
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    Route route = routeOf(request);
+    if (!limiter.tryAcquire(route.priority)) {
+      rejectedRequests.increment();
+      ErrorResponse rejection = ServiceOverloadedException.OVERLOADED;
+      response.setStatus(rejection.getStatus().value());
+      response.setHeader("Retry-After", "1");
+      response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+      response.setContentLength(rejection.getBody().length);
+      response.getOutputStream().write(rejection.getBody());
+      return;
+    }
+    long start = System.nanoTime();
+    boolean overloaded = true;
+    try {
+      filterChain.doFilter(request, response);
+      // e.g. the password hashing pool rejected the request
+      overloaded = response.getStatus() == HttpStatus.SERVICE_UNAVAILABLE.value();
+    }
+    finally {
+      limiter.release(route.ordinal(), System.nanoTime() - start, overloaded);
+    }
+  }
+
+  static Route routeOf(HttpServletRequest request) {
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    if (path.startsWith("/user-logouts")) {
+      return Route.LOGOUT;
+    }
+    if (HttpMethod.GET.matches(request.getMethod())) {
+      return Route.READ;
+    }
+    if (path.startsWith("/user-logins")) {
+      return Route.LOGIN;
+    }
+    if (HttpMethod.POST.matches(request.getMethod()) && path.equals("/users")) {
+      return Route.REGISTRATION;
+    }
+    return Route.EDIT;
+  }
+}
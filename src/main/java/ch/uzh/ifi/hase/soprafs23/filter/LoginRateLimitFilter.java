@@ -0,0 +1,152 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.exceptions.ErrorResponse;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login Rate Limit Filter
+ * Limits POST /user-logins and POST /users per client IP and per username with
+ * token buckets, before the request reaches the UserService. Rejected requests
+ * get a 429 with a Retry-After header.
+ * The client IP is the remote address Tomcat resolved from X-Forwarded-For
+ * (server.forward-headers-strategy), so clients behind the App Engine proxy get
+ * their own buckets. Usernames are limited by their normalized form, see
+ * User.normalizeUsername. Bodies larger than MAX_BODY are rejected with a 413,
+ * whether they declare their length or are sent chunked.
+ */
+@Component
+public class LoginRateLimitFilter extends OncePerRequestFilter {
+
+  private static final ErrorResponse TOO_MANY_REQUESTS = ErrorResponse.of(HttpStatus.TOO_MANY_REQUESTS,
+      "Too many attempts, please try again later");
+  private static final ErrorResponse PAYLOAD_TOO_LARGE = ErrorResponse.of(HttpStatus.PAYLOAD_TOO_LARGE,
+      "The request body is too large");
+  // login and registration bodies are tiny, every body is read up to this size to find the username
+  static final int MAX_BODY = 16 * 1024;
+  private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+  private final boolean enabled;
+  private final TokenBucketLimiter ipLimiter;
+  private final TokenBucketLimiter usernameLimiter;
+
+  public LoginRateLimitFilter(@Value("${user.rate-limit.enabled:true}") boolean enabled,
+                              @Value("${user.rate-limit.ip.capacity:20}") double ipCapacity,
+                              @Value("${user.rate-limit.ip.refill-per-second:5}") double ipRefillPerSecond,
+                              @Value("${user.rate-limit.username.capacity:5}") double usernameCapacity,
+                              @Value("${user.rate-limit.username.refill-per-second:0.2}") double usernameRefillPerSecond,
+                              @Value("${user.rate-limit.max-keys:65536}") int maxKeys,
+                              @Value("${user.rate-limit.idle-timeout:600000}") long idleTimeoutMillis) {
+    this.enabled = enabled;
+    this.ipLimiter = new TokenBucketLimiter(ipCapacity, ipRefillPerSecond, maxKeys, idleTimeoutMillis);
+    this.usernameLimiter = new TokenBucketLimiter(usernameCapacity, usernameRefillPerSecond, maxKeys,
+        idleTimeoutMillis);
+  }
+
+  @Override
+  protected boolean shouldNotFilter(HttpServletRequest request) {
+    if (!enabled || !HttpMethod.POST.matches(request.getMethod())) {
+      return true;
+    }
+    String path = request.getRequestURI().substring(request.getContextPath().length());
+    return !path.equals("/user-logins") && !path.equals("/users");
+  }
+
+  @Override
+  protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+      throws ServletException, IOException {
+    long waitNanos = ipLimiter.tryAcquire(request.getRemoteAddr());
+    if (waitNanos > 0) {
+      reject(response, waitNanos);
+      return;
+    }
+
+    // a chunked body has no declared length, it is cut off after MAX_BODY bytes instead
+    byte[] body = request.getContentLengthLong() > MAX_BODY ? null : readAtMost(request.getInputStream(), MAX_BODY);
+    if (body == null) {
+      writeError(response, PAYLOAD_TOO_LARGE);
+      return;
+    }
+    CachedBodyHttpServletRequest cachedRequest = new CachedBodyHttpServletRequest(request, body);
+    String username = readUsername(body);
+    if (username != null) {
+      // "Alice" and "ALICE" are the same account, so they share one bucket
+      waitNanos = usernameLimiter.tryAcquire(User.normalizeUsername(username));
+      if (waitNanos > 0) {
+        reject(response, waitNanos);
+        return;
+      }
+    }
+    filterChain.doFilter(cachedRequest, response);
+  }
+
+  private static void reject(HttpServletResponse response, long waitNanos) throws IOException {
+    response.setHeader("Retry-After", Long.toString(Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos) + 1)));
+    writeError(response, TOO_MANY_REQUESTS);
+  }
+
+  private static void writeError(HttpServletResponse response, ErrorResponse error) throws IOException {
+    response.setStatus(error.getStatus().value());
+    response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+    response.setContentLength(error.getBody().length);
+    response.getOutputStream().write(error.getBody());
+  }
+
+  // the whole body if it has at most limit bytes, otherwise null
+  private static byte[] readAtMost(InputStream input, int limit) throws IOException {
+    byte[] buffer = new byte[1024];
+    int length = 0;
+    int read;
+    while ((read = input.read(buffer, length, buffer.length - length)) != -1) {
+      length += read;
+      if (length > limit) {
+        return null;
+      }
+      if (length == buffer.length) {
+        // one byte more than the limit is enough to detect a larger body
+        buffer = Arrays.copyOf(buffer, Math.min(buffer.length * 2, limit + 1));
+      }
+    }
+    return Arrays.copyOf(buffer, length);
+  }
+
+  // reads the top level "username" field, the body is not bound to a DTO here
+  private static String readUsername(byte[] body) {
+    try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return null;
+      }
+      JsonToken token;
+      while ((token = parser.nextToken()) == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        token = parser.nextToken();
+        if ("username".equals(field) && token == JsonToken.VALUE_STRING) {
+          return parser.getText();
+        }
+        parser.skipChildren();
+      }
+      return null;
+    }
+    catch (IOException e) {
+      // malformed body, the controller rejects it
+      return null;
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Token Bucket Limiter
+ * Keeps one token bucket per key (e.g. an IP address or a username) in a fixed
+ * size, open addressed table. Every slot is updated independently with a CAS on
+ * an immutable bucket, so there are no locks and requests for different keys
+ * do not contend. Denied requests do not write anything at all.
+ *
+ * Memory is bounded by the table size: buckets that were idle for longer than
+ * the idle timeout are treated as free slots, and if all slots a key may use are
+ * taken, the least recently used bucket is replaced.
+ */
+public class TokenBucketLimiter {
+
+  // number of slots a key may occupy, starting at its hash
+  private static final int PROBES = 4;
+
+  private final double capacity;
+  private final double tokensPerNano;
+  private final long idleNanos;
+  private final LongSupplier nanoClock;
+
+  private final AtomicReferenceArray<Bucket> slots;
+  private final int mask;
+
+  public TokenBucketLimiter(double capacity, double refillPerSecond, int maxKeys, long idleTimeoutMillis) {
+    this(capacity, refillPerSecond, maxKeys, idleTimeoutMillis, System::nanoTime);
+  }
+
+  TokenBucketLimiter(double capacity, double refillPerSecond, int maxKeys, long idleTimeoutMillis,
+                     LongSupplier nanoClock) {
+    if (capacity < 1 || refillPerSecond <= 0) {
+      throw new IllegalArgumentException("capacity must be at least 1 and the refill rate positive");
+    }
+    this.capacity = capacity;
+    this.tokensPerNano = refillPerSecond / TimeUnit.SECONDS.toNanos(1);
+    // an idle bucket may only be forgotten once it would have been refilled completely
+    this.idleNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis), (long) (capacity / tokensPerNano));
+    this.nanoClock = nanoClock;
+    int tableSize = Integer.highestOneBit(Math.max(PROBES, maxKeys - 1)) << 1;
+    this.slots = new AtomicReferenceArray<>(tableSize);
+    this.mask = tableSize - 1;
+  }
+
+  /**
+   * Takes one token from the bucket of the given key.
+   *
+   * @return 0 if the request is permitted, otherwise the nanoseconds until the next token is available
+   */
+  public long tryAcquire(String key) {
+    int hash = spread(key.hashCode());
+    retry:
+    while (true) {
+      long now = nanoClock.getAsLong();
+      int freeSlot = -1;
+      Bucket freeSlotBucket = null;
+      int oldestSlot = -1;
+      Bucket oldestBucket = null;
+
+      for (int probe = 0; probe < PROBES; probe++) {
+        int slot = (hash + probe) & mask;
+        Bucket bucket = slots.get(slot);
+        if (bucket == null || now - bucket.updatedAt > idleNanos) {
+          if (freeSlot < 0) {
+            freeSlot = slot;
+            freeSlotBucket = bucket;
+          }
+          continue;
+        }
+        if (bucket.key.equals(key)) {
+          double tokens = Math.min(capacity, bucket.tokens + (now - bucket.updatedAt) * tokensPerNano);
+          if (tokens < 1) {
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+          }
+          if (slots.compareAndSet(slot, bucket, new Bucket(key, tokens - 1, now))) {
+            return 0;
+          }
+          // another request of the same key won the race
+          continue retry;
+        }
+        if (oldestBucket == null || bucket.updatedAt < oldestBucket.updatedAt) {
+          oldestSlot = slot;
+          oldestBucket = bucket;
+        }
+      }
+
+      // the key has no bucket yet (or it was idle long enough to be full again)
+      int slot = freeSlot >= 0 ? freeSlot : oldestSlot;
+      Bucket expected = freeSlot >= 0 ? freeSlotBucket : oldestBucket;
+      if (slots.compareAndSet(slot, expected, new Bucket(key, capacity - 1, now))) {
+        return 0;
+      }
+    }
+  }
+
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+
+  private static final class Bucket {
+    private final String key;
+    private final double tokens;
+    private final long updatedAt;
+
+    private Bucket(String key, double tokens, long updatedAt) {
+      this.key = key;
+      this.tokens = tokens;
+      this.updatedAt = updatedAt;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package ch.uzh.ifi.hase.soprafs23.repository;
+
+/**
+ * Shard Context
+ * Holds the shard the current thread works on. ShardRoutingDataSource reads it
+ * when a transaction needs its connection, so it has to be set before the
+ * transaction starts (see ShardRouter.onShard).
+ */
+public final class ShardContext {
+
+  private static final ThreadLocal<Integer> CURRENT_SHARD = new ThreadLocal<>();
+
+  private ShardContext() {
+  }
+
+  /**
+   * @return the shard of the current thread, null means the default shard 0
+   */
+  public static Integer get() {
+    return CURRENT_SHARD.get();
+  }
+
+  public static void set(Integer shard) {
+    if (shard == null) {
+      CURRENT_SHARD.remove();
+    }
+    else {
+      CURRENT_SHARD.set(shard);
+    }
+  }
+}
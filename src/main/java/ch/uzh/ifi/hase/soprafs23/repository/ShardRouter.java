@@ -0,0 +1,140 @@
+package ch.uzh.ifi.hase.soprafs23.repository;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Shard Router
+ * The users are spread over user.shards.count databases. Every shard has its own
+ * id sequence starting at shard + 1 and incrementing by the number of shards, so
+ * the shard of a user follows from the id alone: (id - 1) mod count.
+ *
+ * A transaction is bound to the connection of one shard, so every piece of work
+ * runs in its own transaction on the shard it belongs to. With a single shard
+ * (the default) the work joins the caller's transaction, or runs in a
+ * transaction of its own if the caller has none. Callers can therefore keep
+ * slow work without database access (e.g. password hashing) outside of any
+ * transaction and only hold a connection while onShard runs.
+ */
+@Component
+public class ShardRouter implements DisposableBean {
+
+  private final int shardCount;
+  private final TransactionTemplate shardTransaction;
+  private final ExecutorService scatterExecutor;
+  private final AtomicInteger nextInsertShard = new AtomicInteger();
+
+  @Autowired
+  public ShardRouter(@Value("${user.shards.count:1}") int shardCount, PlatformTransactionManager transactionManager) {
+    if (shardCount < 1) {
+      throw new IllegalArgumentException("user.shards.count must be at least 1");
+    }
+    this.shardCount = shardCount;
+    if (shardCount > 1) {
+      this.shardTransaction = new TransactionTemplate(transactionManager);
+      this.shardTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+      this.scatterExecutor = Executors.newFixedThreadPool(shardCount, new CustomizableThreadFactory("user-shard-"));
+    }
+    else {
+      this.shardTransaction = transactionManager == null ? null : new TransactionTemplate(transactionManager);
+      this.scatterExecutor = null;
+    }
+  }
+
+  /**
+   * @return a router for a single database, e.g. for unit tests without a transaction manager
+   */
+  public static ShardRouter unsharded() {
+    return new ShardRouter(1, null);
+  }
+
+  public boolean isSharded() {
+    return shardCount > 1;
+  }
+
+  public int getShardCount() {
+    return shardCount;
+  }
+
+  public int shardOf(long userId) {
+    return (int) Math.floorMod(userId - 1, (long) shardCount);
+  }
+
+  /**
+   * @return the shard the next new user is inserted into (round robin)
+   */
+  public int nextInsertShard() {
+    return shardCount == 1 ? 0 : Math.floorMod(nextInsertShard.getAndIncrement(), shardCount);
+  }
+
+  /**
+   * Runs the work in a new transaction on the given shard. With a single shard
+   * it joins the current transaction, if there is one.
+   */
+  public <T> T onShard(int shard, Supplier<T> work) {
+    if (shardCount == 1) {
+      return shardTransaction == null ? work.get() : shardTransaction.execute(status -> work.get());
+    }
+    Integer previousShard = ShardContext.get();
+    ShardContext.set(shard);
+    try {
+      return shardTransaction.execute(status -> work.get());
+    }
+    finally {
+      ShardContext.set(previousShard);
+    }
+  }
+
+  /**
+   * Runs the work on all shards in parallel and concatenates the results.
+   */
+  public <T> List<T> onAllShards(Supplier<List<T>> work) {
+    if (shardCount == 1) {
+      return work.get();
+    }
+    List<Future<List<T>>> shardResults = new ArrayList<>(shardCount);
+    for (int shard = 0; shard < shardCount; shard++) {
+      int currentShard = shard;
+      shardResults.add(scatterExecutor.submit(() -> onShard(currentShard, work)));
+    }
+    List<T> results = new ArrayList<>();
+    try {
+      for (Future<List<T>> shardResult : shardResults) {
+        results.addAll(shardResult.get());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while querying the user shards", e);
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Querying a user shard failed", e.getCause());
+    }
+    return results;
+  }
+
+  @Override
+  public void destroy() {
+    if (scatterExecutor != null) {
+      scatterExecutor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,15 @@
+package ch.uzh.ifi.hase.soprafs23.repository;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Hands out connections of the shard set in ShardContext. Threads without a
+ * shard get connections of the default shard 0.
+ */
+public class ShardRoutingDataSource extends AbstractRoutingDataSource {
+
+  @Override
+  protected Object determineCurrentLookupKey() {
+    return ShardContext.get();
+  }
+}
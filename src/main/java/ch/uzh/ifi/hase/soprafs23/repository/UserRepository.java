@@ -1,12 +1,41 @@
 package ch.uzh.ifi.hase.soprafs23.repository;
 
+import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs23.entity.User;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.util.Collection;
+import java.util.List;
+
+import static org.hibernate.jpa.QueryHints.HINT_CACHEABLE;
+import static org.hibernate.jpa.QueryHints.HINT_CACHE_REGION;
+
 @Repository("userRepository")
-public interface UserRepository extends JpaRepository<User, Long> {
+public interface UserRepository extends JpaRepository<User, Long>, UserUpdateRepository {
+
+  String USERNAME_QUERY_REGION = "user-by-username";
+
   User findByPassword(String password);
 
+  // login, registration and renames all look users up by name -> answer repeated lookups from the query cache.
+  // The results are ids, renames evict the region (see UserUpdateRepository) and the entities come from the "user" region.
+  @QueryHints({ @QueryHint(name = HINT_CACHEABLE, value = "true"),
+      @QueryHint(name = HINT_CACHE_REGION, value = USERNAME_QUERY_REGION) })
   User findByUsername(String username);
+
+  // usernameNormalized is unique, see User.normalizeUsername
+  @QueryHints({ @QueryHint(name = HINT_CACHEABLE, value = "true"),
+      @QueryHint(name = HINT_CACHE_REGION, value = USERNAME_QUERY_REGION) })
+  User findByUsernameNormalized(String usernameNormalized);
+
+  @Query("select u.id from User u where u.status = :status")
+  List<Long> findIdsByStatus(@Param("status") UserStatus status);
+
+  // uses the index on birthday_day_of_year, see User.birthdayDayOfYear
+  List<User> findByBirthdayDayOfYearIn(Collection<Integer> birthdayDaysOfYear);
 }
@@ -0,0 +1,42 @@
+package ch.uzh.ifi.hase.soprafs23.repository;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
+
+import java.time.LocalDate;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * User Update Repository
+ * Every write is a single UPDATE statement, the users are not loaded first
+ * (status changes select the ids of the users they change, for the events). The
+ * statements run through JDBC instead of JPQL bulk updates, which would evict
+ * the whole "user" cache region. Only the written users are evicted from the
+ * second-level cache once the transaction commits, and the username lookups
+ * after a rename. A User loaded earlier in the same transaction keeps its old
+ * field values.
+ */
+public interface UserUpdateRepository {
+
+  /**
+   * Sets the status of those of the given users that have a different one.
+   *
+   * @return the ids of the users whose status changed
+   */
+  List<Long> updateStatus(Collection<Long> ids, UserStatus status);
+
+  /**
+   * Sets the status and, unless password is null, the password.
+   *
+   * @return false if the user does not exist
+   */
+  boolean updateStatusAndPassword(long id, UserStatus status, String password);
+
+  /**
+   * Sets the username (and usernameNormalized) and the birthday (and birthdayDayOfYear),
+   * null values leave the column unchanged.
+   *
+   * @return false if the user does not exist
+   */
+  boolean updateProfile(long id, String username, LocalDate birthday);
+}
@@ -0,0 +1,120 @@
+package ch.uzh.ifi.hase.soprafs23.repository;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The statements of UserUpdateRepository. They join the JPA transaction of the
+ * caller (and with it the shard ShardRouter selected). status is stored as the
+ * ordinal of UserStatus, as Hibernate maps the enum.
+ */
+public class UserUpdateRepositoryImpl implements UserUpdateRepository {
+
+  // the rows stay locked until the transaction ends, so the update changes exactly the selected ones
+  private static final String SELECT_OTHER_STATUS =
+      "select id from user where id in (:ids) and status <> :status for update";
+  private static final String UPDATE_STATUS = "update user set status = :status where id in (:ids)";
+  private static final String UPDATE_STATUS_AND_PASSWORD =
+      "update user set status = ?, password = coalesce(?, password) where id = ?";
+  private static final String EXISTS = "select count(*) from user where id = ?";
+
+  private final JdbcTemplate jdbcTemplate;
+  private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+  private final Cache cache;
+
+  public UserUpdateRepositoryImpl(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.namedParameterJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+    this.cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+  }
+
+  @Override
+  public List<Long> updateStatus(Collection<Long> ids, UserStatus status) {
+    if (ids.isEmpty()) {
+      return List.of();
+    }
+    List<Long> updatedIds = namedParameterJdbcTemplate.queryForList(SELECT_OTHER_STATUS,
+        new MapSqlParameterSource("status", status.ordinal()).addValue("ids", ids), Long.class);
+    if (updatedIds.isEmpty()) {
+      return updatedIds;
+    }
+    namedParameterJdbcTemplate.update(UPDATE_STATUS,
+        new MapSqlParameterSource("status", status.ordinal()).addValue("ids", updatedIds));
+    evictAfterCommit(updatedIds, false);
+    return updatedIds;
+  }
+
+  @Override
+  public boolean updateStatusAndPassword(long id, UserStatus status, String password) {
+    boolean updated = jdbcTemplate.update(UPDATE_STATUS_AND_PASSWORD, status.ordinal(), password, id) > 0;
+    if (updated) {
+      evictAfterCommit(List.of(id), false);
+    }
+    return updated;
+  }
+
+  @Override
+  public boolean updateProfile(long id, String username, LocalDate birthday) {
+    if (username == null && birthday == null) {
+      return jdbcTemplate.queryForObject(EXISTS, Integer.class, id) > 0;
+    }
+    StringBuilder sql = new StringBuilder("update user set ");
+    List<Object> arguments = new ArrayList<>();
+    if (username != null) {
+      sql.append("username = ?, username_normalized = ?");
+      arguments.add(username);
+      arguments.add(User.normalizeUsername(username));
+    }
+    if (birthday != null) {
+      sql.append(username != null ? ", " : "").append("birthday = ?, birthday_day_of_year = ?");
+      arguments.add(birthday);
+      arguments.add(User.birthdayDayOfYear(birthday));
+    }
+    sql.append(" where id = ?");
+    arguments.add(id);
+    boolean updated = jdbcTemplate.update(sql.toString(), arguments.toArray()) > 0;
+    if (updated) {
+      evictAfterCommit(List.of(id), username != null);
+    }
+    return updated;
+  }
+
+  /* Evicting before the commit would let a concurrent load cache the old row again. */
+  private void evictAfterCommit(Collection<Long> ids, boolean usernameChanged) {
+    if (ids.isEmpty()) {
+      return;
+    }
+    Runnable evict = () -> {
+      for (Long id : ids) {
+        cache.evictEntityData(User.class, id);
+      }
+      // cached lookups map names to ids, only a rename changes them
+      if (usernameChanged) {
+        cache.evictQueryRegion(UserRepository.USERNAME_QUERY_REGION);
+      }
+    };
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      evict.run();
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCommit() {
+        evict.run();
+      }
+    });
+  }
+}
@@ -0,0 +1,25 @@
+package ch.uzh.ifi.hase.soprafs23.rest.dto;
+
+public class ProfileFrameDTO {
+
+    // class.method:line of the topmost frame in the application's code
+    private String frame;
+    // number of CPU samples or sampled allocated bytes, depending on the list
+    private long value;
+
+    public String getFrame() {
+        return frame;
+    }
+
+    public void setFrame(String frame) {
+        this.frame = frame;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+}
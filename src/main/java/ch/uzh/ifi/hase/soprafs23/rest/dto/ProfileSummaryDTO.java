@@ -0,0 +1,52 @@
+package ch.uzh.ifi.hase.soprafs23.rest.dto;
+
+import java.util.List;
+
+public class ProfileSummaryDTO {
+
+    private long durationMillis;
+    private long executionSamples;
+    private long allocatedBytes;
+    private List<ProfileFrameDTO> hottestFrames;
+    private List<ProfileFrameDTO> topAllocatingFrames;
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public long getExecutionSamples() {
+        return executionSamples;
+    }
+
+    public void setExecutionSamples(long executionSamples) {
+        this.executionSamples = executionSamples;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public void setAllocatedBytes(long allocatedBytes) {
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    public List<ProfileFrameDTO> getHottestFrames() {
+        return hottestFrames;
+    }
+
+    public void setHottestFrames(List<ProfileFrameDTO> hottestFrames) {
+        this.hottestFrames = hottestFrames;
+    }
+
+    public List<ProfileFrameDTO> getTopAllocatingFrames() {
+        return topAllocatingFrames;
+    }
+
+    public void setTopAllocatingFrames(List<ProfileFrameDTO> topAllocatingFrames) {
+        this.topAllocatingFrames = topAllocatingFrames;
+    }
+}
@@ -0,0 +1,58 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Idle Session Reaper
+ * Advances the SessionActivityTracker once per tick and sets all users whose
+ * session expired to OFFLINE with one set-based update (where id in ...) per
+ * shard, see UserService.expireSessions.
+ */
+@Component
+@Lazy(false)
+public class IdleSessionReaper {
+
+  private final Logger log = LoggerFactory.getLogger(IdleSessionReaper.class);
+
+  private final SessionActivityTracker sessionActivityTracker;
+  private final UserService userService;
+  private final UserRepository userRepository;
+  private final ShardRouter shardRouter;
+
+  public IdleSessionReaper(SessionActivityTracker sessionActivityTracker, UserService userService,
+                           @Qualifier("userRepository") UserRepository userRepository, ShardRouter shardRouter) {
+    this.sessionActivityTracker = sessionActivityTracker;
+    this.userService = userService;
+    this.userRepository = userRepository;
+    this.shardRouter = shardRouter;
+  }
+
+  // users that are already online at startup (e.g. restored from a snapshot) expire like everyone else
+  @EventListener(ApplicationReadyEvent.class)
+  public void trackOnlineUsers() {
+    for (Long userId : shardRouter.onAllShards(() -> userRepository.findIdsByStatus(UserStatus.ONLINE))) {
+      sessionActivityTracker.touch(userId);
+    }
+  }
+
+  @Scheduled(fixedRateString = "${user.session.tick:1000}")
+  public void expireIdleSessions() {
+    List<Long> expiredUserIds = sessionActivityTracker.advance();
+    if (!expiredUserIds.isEmpty()) {
+      int updated = userService.expireSessions(expiredUserIds);
+      log.debug("Set {} idle users offline", updated);
+    }
+  }
+}
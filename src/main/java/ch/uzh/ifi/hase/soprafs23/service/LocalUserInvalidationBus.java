@@ -0,0 +1,18 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Used when user.invalidation.enabled is not set: a single instance has no other
+ * caches to invalidate.
+ */
+@Component
+@ConditionalOnProperty(name = "user.invalidation.enabled", havingValue = "false", matchIfMissing = true)
+public class LocalUserInvalidationBus implements UserInvalidationBus {
+
+  @Override
+  public void publish(long userId) {
+    // nothing to do
+  }
+}
@@ -0,0 +1,136 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.exceptions.ServiceOverloadedException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
+
+/**
+ * Password Hasher
+ * Hashes and verifies passwords with BCrypt on a dedicated, fixed size thread
+ * pool with a bounded queue, so a login storm cannot occupy all request threads
+ * with hashing. If the queue is full the caller fails fast with a 503.
+ *
+ * Passwords stored before hashing was introduced (plain text) and hashes with a
+ * lower cost than user.password.hash-cost are reported by needsUpgrade(), so the
+ * login can rehash them. The pool is exposed as "password.hashing" executor metrics.
+ *
+ * dummyHash() is a hash of the configured cost that logins of unknown usernames
+ * verify against, so they take as long as a wrong password for an existing user.
+ */
+@Component
+public class PasswordHasher implements DisposableBean {
+
+  private static final Pattern BCRYPT_HASH = Pattern.compile("^\\$2[aby]?\\$\\d\\d\\$[./0-9A-Za-z]{53}$");
+
+  private final BCryptPasswordEncoder encoder;
+  private final ThreadPoolExecutor executor;
+  private final long timeoutMillis;
+  private final Counter rejections;
+  private volatile String dummyHash;
+
+  public PasswordHasher(@Value("${user.password.hash-cost:10}") int hashCost,
+                        @Value("${user.password.pool-size:0}") int poolSize,
+                        @Value("${user.password.queue-capacity:64}") int queueCapacity,
+                        @Value("${user.password.timeout:5000}") long timeoutMillis,
+                        MeterRegistry meterRegistry) {
+    this.encoder = new BCryptPasswordEncoder(hashCost);
+    int threads = poolSize > 0 ? poolSize : Runtime.getRuntime().availableProcessors();
+    this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("password-hashing-"),
+        new ThreadPoolExecutor.AbortPolicy());
+    this.timeoutMillis = timeoutMillis;
+    new ExecutorServiceMetrics(executor, "password.hashing", Tags.empty()).bindTo(meterRegistry);
+    this.rejections = Counter.builder("password.hashing.rejected")
+        .description("Hashing requests rejected because the queue was full")
+        .register(meterRegistry);
+  }
+
+  public String hash(String rawPassword) {
+    return run(() -> encoder.encode(rawPassword));
+  }
+
+  public boolean matches(String rawPassword, String storedPassword) {
+    if (rawPassword == null || storedPassword == null) {
+      return false;
+    }
+    if (!isHashed(storedPassword)) {
+      return MessageDigest.isEqual(rawPassword.getBytes(StandardCharsets.UTF_8),
+          storedPassword.getBytes(StandardCharsets.UTF_8));
+    }
+    return run(() -> encoder.matches(rawPassword, storedPassword));
+  }
+
+  /* A fixed hash of the configured cost which no real login is expected to match. */
+  public String dummyHash() {
+    String hash = dummyHash;
+    if (hash == null) {
+      // computed on first use to keep it out of the startup, concurrent logins may compute it twice
+      hash = hash("dummy-password-of-an-unknown-user");
+      dummyHash = hash;
+    }
+    return hash;
+  }
+
+  /* True if the stored password is plain text or was hashed with a lower cost than configured. */
+  public boolean needsUpgrade(String storedPassword) {
+    return !isHashed(storedPassword) || encoder.upgradeEncoding(storedPassword);
+  }
+
+  @Override
+  public void destroy() {
+    executor.shutdown();
+  }
+
+  private static boolean isHashed(String storedPassword) {
+    return BCRYPT_HASH.matcher(storedPassword).matches();
+  }
+
+  private <T> T run(Callable<T> task) {
+    Future<T> future;
+    try {
+      future = executor.submit(task);
+    }
+    catch (RejectedExecutionException e) {
+      rejections.increment();
+      throw new ServiceOverloadedException();
+    }
+
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      future.cancel(true);
+      throw new ServiceOverloadedException();
+    }
+    catch (InterruptedException e) {
+      future.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new ServiceOverloadedException();
+    }
+    catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
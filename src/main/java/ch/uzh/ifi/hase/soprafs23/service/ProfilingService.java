@@ -0,0 +1,201 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.exceptions.ProfilingInProgressException;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.ProfileFrameDTO;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.ProfileSummaryDTO;
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Profiling Service
+ * Records the running service with JDK Flight Recorder on demand: CPU samples,
+ * allocation samples and lock contention, based on the JDK "profile" settings.
+ * The overhead is bounded by coarser sampling than "profile" uses, by capping
+ * the duration (admin.profiling.max-duration) and the size of the recording
+ * (admin.profiling.max-size), and by allowing only one recording at a time.
+ */
+@Service
+public class ProfilingService implements DisposableBean {
+
+  private static final String APPLICATION_PACKAGE = "ch.uzh.ifi.hase.soprafs23.";
+  private static final int TOP_FRAMES = 20;
+
+  // applied on top of the "profile" settings
+  private static final Map<String, String> SETTINGS = Map.of(
+      "jdk.ExecutionSample#period", "20 ms",
+      "jdk.ObjectAllocationSample#throttle", "100/s",
+      "jdk.JavaMonitorEnter#threshold", "10 ms",
+      "jdk.ThreadPark#threshold", "10 ms",
+      "jdk.OldObjectSample#enabled", "false");
+
+  private final Logger log = LoggerFactory.getLogger(ProfilingService.class);
+
+  private final long maxDurationMillis;
+  private final long maxSizeBytes;
+  private final AtomicBoolean recording = new AtomicBoolean();
+  private final ScheduledExecutorService recordingStopper =
+      Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("jfr-recording-"));
+
+  public ProfilingService(@Value("${admin.profiling.max-duration:60000}") long maxDurationMillis,
+                          @Value("${admin.profiling.max-size:67108864}") long maxSizeBytes) {
+    this.maxDurationMillis = maxDurationMillis;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /**
+   * Starts a recording that stops by itself after the given duration (at most admin.profiling.max-duration).
+   *
+   * @return the .jfr file once the recording stopped, the caller deletes it
+   * @throws ProfilingInProgressException if another recording is running
+   */
+  public CompletableFuture<Path> record(long durationMillis) {
+    if (!recording.compareAndSet(false, true)) {
+      throw new ProfilingInProgressException();
+    }
+    try {
+      Map<String, String> settings = new HashMap<>(Configuration.getConfiguration("profile").getSettings());
+      settings.putAll(SETTINGS);
+      Path recordingFile = Files.createTempFile("profile-", ".jfr");
+      Recording jfrRecording = new Recording(settings);
+      jfrRecording.setName("on-demand-profile");
+      jfrRecording.setToDisk(true);
+      jfrRecording.setMaxSize(maxSizeBytes);
+      jfrRecording.start();
+
+      CompletableFuture<Path> result = new CompletableFuture<>();
+      recordingStopper.schedule(() -> {
+        try {
+          jfrRecording.stop();
+          jfrRecording.dump(recordingFile);
+        }
+        catch (IOException | RuntimeException e) {
+          deleteRecording(recordingFile);
+          finish(jfrRecording);
+          result.completeExceptionally(e);
+          return;
+        }
+        finish(jfrRecording);
+        result.complete(recordingFile);
+      }, Math.max(1, Math.min(durationMillis, maxDurationMillis)), TimeUnit.MILLISECONDS);
+      return result;
+    }
+    catch (IOException | ParseException | RuntimeException e) {
+      recording.set(false);
+      throw new IllegalStateException("Starting the JFR recording failed", e);
+    }
+  }
+
+  // the slot is free before the caller learns that the recording finished
+  private void finish(Recording jfrRecording) {
+    jfrRecording.close();
+    recording.set(false);
+  }
+
+  /**
+   * Lists the application frames that were on CPU and allocated most often. Every
+   * sample counts for the topmost frame of this application's code on its stack.
+   */
+  public ProfileSummaryDTO summarize(Path recordingFile, long durationMillis) {
+    Map<String, Long> executionSamplesByFrame = new HashMap<>();
+    Map<String, Long> allocatedBytesByFrame = new HashMap<>();
+    long executionSamples = 0;
+    long allocatedBytes = 0;
+    try (RecordingFile events = new RecordingFile(recordingFile)) {
+      while (events.hasMoreEvents()) {
+        RecordedEvent event = events.readEvent();
+        String eventType = event.getEventType().getName();
+        if ("jdk.ExecutionSample".equals(eventType)) {
+          executionSamples++;
+          String frame = applicationFrame(event.getStackTrace());
+          if (frame != null) {
+            executionSamplesByFrame.merge(frame, 1L, Long::sum);
+          }
+        }
+        else if ("jdk.ObjectAllocationSample".equals(eventType)) {
+          long weight = event.getLong("weight");
+          allocatedBytes += weight;
+          String frame = applicationFrame(event.getStackTrace());
+          if (frame != null) {
+            allocatedBytesByFrame.merge(frame, weight, Long::sum);
+          }
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+
+    ProfileSummaryDTO summary = new ProfileSummaryDTO();
+    summary.setDurationMillis(Math.min(durationMillis, maxDurationMillis));
+    summary.setExecutionSamples(executionSamples);
+    summary.setAllocatedBytes(allocatedBytes);
+    summary.setHottestFrames(top(executionSamplesByFrame));
+    summary.setTopAllocatingFrames(top(allocatedBytesByFrame));
+    return summary;
+  }
+
+  @Override
+  public void destroy() {
+    recordingStopper.shutdownNow();
+  }
+
+  public void deleteRecording(Path recordingFile) {
+    try {
+      Files.deleteIfExists(recordingFile);
+    }
+    catch (IOException e) {
+      log.warn("Could not delete the recording {}", recordingFile, e);
+    }
+  }
+
+  private static String applicationFrame(RecordedStackTrace stackTrace) {
+    if (stackTrace == null) {
+      return null;
+    }
+    for (RecordedFrame frame : stackTrace.getFrames()) {
+      String className = frame.getMethod().getType().getName();
+      // skip generated proxies, they only delegate
+      if (frame.isJavaFrame() && className.startsWith(APPLICATION_PACKAGE) && !className.contains("$$")) {
+        return className + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+      }
+    }
+    return null;
+  }
+
+  private static List<ProfileFrameDTO> top(Map<String, Long> valuesByFrame) {
+    List<ProfileFrameDTO> frames = new ArrayList<>(valuesByFrame.size());
+    valuesByFrame.forEach((frame, value) -> {
+      ProfileFrameDTO profileFrameDTO = new ProfileFrameDTO();
+      profileFrameDTO.setFrame(frame);
+      profileFrameDTO.setValue(value);
+      frames.add(profileFrameDTO);
+    });
+    frames.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+    return frames.size() > TOP_FRAMES ? new ArrayList<>(frames.subList(0, TOP_FRAMES)) : frames;
+  }
+}
@@ -0,0 +1,168 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Session Activity Tracker
+ * Remembers when each logged in user was last active and finds the users that
+ * have been idle for longer than user.session.idle-timeout.
+ *
+ * The sessions are kept in a hashed timer wheel. Recording activity only updates
+ * a timestamp (no re-scheduling), and advance() only looks at the bucket of the
+ * current tick: sessions that were active in the meantime are moved to the bucket
+ * of their new deadline, all others have expired. The wheel itself is only touched
+ * by the thread calling advance(); new sessions are handed over through a queue.
+ */
+@Component
+public class SessionActivityTracker {
+
+  private static final long EXPIRED = -1;
+
+  private final long tickNanos;
+  private final long timeoutTicks;
+  private final LongSupplier nanoClock;
+  private final long startNanos;
+
+  private final Queue<Session>[] wheel;
+  private final int mask;
+  private final ConcurrentHashMap<Long, Session> sessions = new ConcurrentHashMap<>();
+  private final Queue<Session> newSessions = new ConcurrentLinkedQueue<>();
+  private long processedTick = -1;
+
+  @Autowired
+  public SessionActivityTracker(@Value("${user.session.idle-timeout:1800000}") long idleTimeoutMillis,
+                                @Value("${user.session.tick:1000}") long tickMillis,
+                                @Value("${user.session.wheel-size:512}") int wheelSize) {
+    this(idleTimeoutMillis, tickMillis, wheelSize, System::nanoTime);
+  }
+
+  SessionActivityTracker(long idleTimeoutMillis, long tickMillis, int wheelSize, LongSupplier nanoClock) {
+    if (Integer.bitCount(wheelSize) != 1) {
+      throw new IllegalArgumentException("user.session.wheel-size must be a power of two");
+    }
+    this.tickNanos = tickMillis * 1_000_000;
+    this.timeoutTicks = Math.max(1, idleTimeoutMillis / tickMillis);
+    this.nanoClock = nanoClock;
+    this.startNanos = nanoClock.getAsLong();
+    this.wheel = newWheel(wheelSize);
+    this.mask = wheelSize - 1;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Queue<Session>[] newWheel(int wheelSize) {
+    Queue<Session>[] wheel = (Queue<Session>[]) new Queue<?>[wheelSize];
+    for (int i = 0; i < wheelSize; i++) {
+      wheel[i] = new ArrayDeque<>();
+    }
+    return wheel;
+  }
+
+  /**
+   * Records activity of the given user and starts tracking the user if necessary.
+   */
+  public void touch(long userId) {
+    long now = currentTick();
+    while (true) {
+      Session session = sessions.computeIfAbsent(userId, id -> {
+        Session created = new Session(id, now);
+        newSessions.add(created);
+        return created;
+      });
+      long lastSeen = session.lastSeenTick.get();
+      if (lastSeen == EXPIRED) {
+        // expired concurrently, replace it by a new session
+        sessions.remove(userId, session);
+        continue;
+      }
+      if (lastSeen >= now || session.lastSeenTick.compareAndSet(lastSeen, now)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops tracking the given user, e.g. after an explicit logout.
+   */
+  public void remove(long userId) {
+    Session session = sessions.remove(userId);
+    if (session != null) {
+      session.lastSeenTick.set(EXPIRED);
+    }
+  }
+
+  public int size() {
+    return sessions.size();
+  }
+
+  /**
+   * Processes all ticks that have passed since the last call and returns the ids
+   * of the users whose sessions expired. Must only be called by one thread at a time.
+   */
+  public synchronized List<Long> advance() {
+    Session added;
+    while ((added = newSessions.poll()) != null) {
+      schedule(added);
+    }
+
+    List<Long> expired = new ArrayList<>();
+    long now = currentTick();
+    for (long tick = processedTick + 1; tick <= now; tick++) {
+      Queue<Session> bucket = wheel[(int) (tick & mask)];
+      int dueSessions = bucket.size();
+      // sessions moved back into the same bucket are appended and not looked at again in this tick
+      for (int i = 0; i < dueSessions; i++) {
+        Session session = bucket.poll();
+        long lastSeen = session.lastSeenTick.get();
+        if (lastSeen == EXPIRED) {
+          continue;
+        }
+        if (lastSeen + timeoutTicks > tick) {
+          schedule(session);
+        }
+        else if (session.lastSeenTick.compareAndSet(lastSeen, EXPIRED)) {
+          sessions.remove(session.userId, session);
+          expired.add(session.userId);
+        }
+        else {
+          // touched concurrently
+          schedule(session);
+        }
+      }
+      processedTick = tick;
+    }
+    return expired;
+  }
+
+  private void schedule(Session session) {
+    long lastSeen = session.lastSeenTick.get();
+    if (lastSeen != EXPIRED) {
+      long deadline = Math.max(lastSeen + timeoutTicks, processedTick + 1);
+      wheel[(int) (deadline & mask)].add(session);
+    }
+  }
+
+  private long currentTick() {
+    return (nanoClock.getAsLong() - startNanos) / tickNanos;
+  }
+
+  private static final class Session {
+    private final long userId;
+    private final AtomicLong lastSeenTick;
+
+    private Session(long userId, long lastSeenTick) {
+      this.userId = userId;
+      this.lastSeenTick = new AtomicLong(lastSeenTick);
+    }
+  }
+}
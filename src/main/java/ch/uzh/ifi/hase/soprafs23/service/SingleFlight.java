@@ -0,0 +1,59 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Single Flight
+ * Coalesces concurrent loads of the same key: the first caller runs the loader,
+ * everyone asking for the same key while that load is running waits for and
+ * shares its result (or its exception). The key is forgotten as soon as the
+ * load completes, so later calls load again - this is not a cache.
+ */
+public class SingleFlight<K, V> {
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+  public V execute(K key, Supplier<V> loader) {
+    CompletableFuture<V> load = new CompletableFuture<>();
+    CompletableFuture<V> runningLoad = inFlight.putIfAbsent(key, load);
+    if (runningLoad != null) {
+      return await(runningLoad);
+    }
+
+    try {
+      V value = loader.get();
+      load.complete(value);
+      return value;
+    }
+    catch (Throwable e) {
+      load.completeExceptionally(e);
+      throw e;
+    }
+    finally {
+      inFlight.remove(key, load);
+    }
+  }
+
+  public int inFlightCount() {
+    return inFlight.size();
+  }
+
+  private V await(CompletableFuture<V> runningLoad) {
+    try {
+      return runningLoad.join();
+    }
+    catch (CompletionException e) {
+      // rethrow the exception of the loader unchanged, e.g. a ResponseStatusException
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,425 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TCP User Invalidation Bus
+ * Every instance listens on user.invalidation.bind-address and
+ * user.invalidation.port and keeps one connection to each of its
+ * user.invalidation.peers (host:port). Published user ids are collected for
+ * user.invalidation.batch-window milliseconds, deduplicated and sent to every
+ * peer as one frame:
+ *
+ *   origin (long) | version (long) | count (int) | count user ids (long) | mac (32 bytes)
+ *
+ * The origin identifies the sending instance and the version grows with every
+ * frame it sends. Receivers ignore frames whose version is not above the last
+ * one on the same connection. A count of -1 means "evict all": it is the first
+ * frame on every new connection, because frames may have been lost while the
+ * peer was unreachable.
+ *
+ * Every peer has its own pending ids and writer thread, so a peer that stops
+ * reading only delays its own frames. A write that blocks for longer than
+ * WRITE_TIMEOUT_MILLIS closes the connection, and a peer with more than
+ * MAX_PENDING_USER_IDS pending ids gets an evict all frame instead of them.
+ *
+ * Peers authenticate with the shared user.invalidation.secret: the receiver
+ * starts every connection with a random challenge (long), and the mac is the
+ * HMAC-SHA256 of the challenge and the frame. A frame with a wrong mac closes
+ * the connection, and frames recorded on one connection are rejected on others.
+ * A connection without a valid frame after HANDSHAKE_TIMEOUT_MILLIS is closed,
+ * and at most user.invalidation.max-connections connections are accepted at a time.
+ */
+@Component
+@Lazy(false)
+@ConditionalOnProperty(name = "user.invalidation.enabled", havingValue = "true")
+public class TcpUserInvalidationBus implements UserInvalidationBus, DisposableBean {
+
+  private static final int EVICT_ALL = -1;
+  private static final int MAX_BATCH_SIZE = 4096;
+  private static final int MAX_PENDING_USER_IDS = 64 * MAX_BATCH_SIZE;
+  private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+  private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+  private static final long WRITE_TIMEOUT_MILLIS = 5000;
+  private static final long RECONNECT_DELAY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  private static final String MAC_ALGORITHM = "HmacSHA256";
+  private static final int MAC_LENGTH = 32;
+  private static final int HEADER_LENGTH = 20;
+
+  private final Logger log = LoggerFactory.getLogger(TcpUserInvalidationBus.class);
+
+  private final long origin = ThreadLocalRandom.current().nextLong();
+  private final AtomicLong version = new AtomicLong();
+
+  private final UserInvalidationListener listener;
+  private final SecretKeySpec secret;
+  private final SecureRandom random = new SecureRandom();
+  private final List<Peer> peers = new ArrayList<>();
+  private final ServerSocket serverSocket;
+  // flushes the pending ids of every peer on its own thread and aborts writes that block for too long
+  private final ScheduledExecutorService senders;
+  private final ExecutorService receivers;
+
+  @Autowired
+  public TcpUserInvalidationBus(@Value("${user.invalidation.bind-address:127.0.0.1}") String bindAddress,
+                                @Value("${user.invalidation.port:7600}") int port,
+                                @Value("${user.invalidation.peers:}") String[] peerAddresses,
+                                @Value("${user.invalidation.batch-window:5}") long batchWindowMillis,
+                                @Value("${user.invalidation.secret:}") String secret,
+                                @Value("${user.invalidation.max-connections:16}") int maxConnections,
+                                UserInvalidationListener listener) {
+    if (secret.isBlank()) {
+      throw new IllegalArgumentException("user.invalidation.secret must be set to enable the invalidation bus");
+    }
+    this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), MAC_ALGORITHM);
+    this.listener = listener;
+    for (String peerAddress : peerAddresses) {
+      if (!peerAddress.isBlank()) {
+        peers.add(new Peer(peerAddress.trim()));
+      }
+    }
+    try {
+      this.serverSocket = new ServerSocket(port, 50, InetAddress.getByName(bindAddress));
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException("Cannot listen for user invalidations on " + bindAddress + ":" + port, e);
+    }
+    // one more thread for acceptPeers, connections beyond the limit are closed instead of queued
+    this.receivers = new ThreadPoolExecutor(maxConnections + 1, maxConnections + 1, 0, TimeUnit.MILLISECONDS,
+        new SynchronousQueue<>(), new CustomizableThreadFactory("user-invalidation-receiver-"));
+    receivers.execute(this::acceptPeers);
+    this.senders = Executors.newScheduledThreadPool(peers.size() + 1,
+        new CustomizableThreadFactory("user-invalidation-sender-"));
+    for (Peer peer : peers) {
+      senders.scheduleWithFixedDelay(peer::flush, batchWindowMillis, batchWindowMillis, TimeUnit.MILLISECONDS);
+    }
+    senders.scheduleWithFixedDelay(this::abortStalledWrites, WRITE_TIMEOUT_MILLIS, WRITE_TIMEOUT_MILLIS / 5,
+        TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void publish(long userId) {
+    for (Peer peer : peers) {
+      peer.publish(userId);
+    }
+  }
+
+  @Override
+  public void destroy() throws IOException {
+    senders.shutdownNow();
+    receivers.shutdownNow();
+    serverSocket.close();
+    for (Peer peer : peers) {
+      peer.abort();
+    }
+  }
+
+  private void abortStalledWrites() {
+    for (Peer peer : peers) {
+      peer.abortStalledWrite();
+    }
+  }
+
+  private byte[] encodeFrame(long frameVersion, long[] userIds) {
+    ByteArrayOutputStream bytes =
+        new ByteArrayOutputStream(HEADER_LENGTH + (userIds == null ? 0 : userIds.length * 8));
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeLong(origin);
+      out.writeLong(frameVersion);
+      if (userIds == null) {
+        out.writeInt(EVICT_ALL);
+      }
+      else {
+        out.writeInt(userIds.length);
+        for (long userId : userIds) {
+          out.writeLong(userId);
+        }
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  // a new Mac for the connection, keyed with the shared secret and primed with the challenge of the receiver
+  private Mac newMac(long challenge) {
+    try {
+      Mac mac = Mac.getInstance(MAC_ALGORITHM);
+      mac.init(secret);
+      mac.update(ByteBuffer.allocate(8).putLong(challenge).array());
+      return mac;
+    }
+    catch (GeneralSecurityException e) {
+      throw new IllegalStateException(MAC_ALGORITHM + " is not available", e);
+    }
+  }
+
+  // the mac of the frame, mac is left primed with the challenge again
+  private static byte[] sign(Mac mac, byte[] challenge, byte[]... frameParts) {
+    for (byte[] framePart : frameParts) {
+      mac.update(framePart);
+    }
+    byte[] signature = mac.doFinal();
+    mac.update(challenge);
+    return signature;
+  }
+
+  private final class Peer {
+    private final String host;
+    private final int port;
+    private final Set<Long> pendingUserIds = ConcurrentHashMap.newKeySet();
+    // the pending ids were dropped, the next frame evicts all users instead
+    private volatile boolean evictAllPending;
+    // System.nanoTime() when the running write started, 0 if none is running
+    private volatile long writeStartedNanos;
+    private volatile Socket socket;
+    // sender thread of the peer only
+    private OutputStream output;
+    private Mac mac;
+    private byte[] challenge;
+    private long nextConnectAttempt = System.nanoTime();
+
+    Peer(String address) {
+      int separator = address.lastIndexOf(':');
+      if (separator < 0) {
+        throw new IllegalArgumentException("user.invalidation.peers entries have the form host:port, got " + address);
+      }
+      this.host = address.substring(0, separator);
+      this.port = Integer.parseInt(address.substring(separator + 1));
+    }
+
+    void publish(long userId) {
+      pendingUserIds.add(userId);
+      if (pendingUserIds.size() > MAX_PENDING_USER_IDS) {
+        // the peer does not keep up (or is unreachable), one evict all frame replaces the ids
+        evictAllPending = true;
+        pendingUserIds.clear();
+      }
+    }
+
+    /**
+     * Sends the pending ids; a new connection starts with the evict all frame, it covers all ids published before.
+     */
+    void flush() {
+      try {
+        if (output == null) {
+          if (System.nanoTime() - nextConnectAttempt < 0) {
+            return;
+          }
+          connect();
+          evictAllPending = true;
+        }
+        if (evictAllPending) {
+          evictAllPending = false;
+          pendingUserIds.clear();
+          write(encodeFrame(version.incrementAndGet(), null));
+        }
+        while (!pendingUserIds.isEmpty()) {
+          write(encodeFrame(version.incrementAndGet(), drainPendingUserIds()));
+        }
+      }
+      catch (IOException e) {
+        log.debug("Sending user invalidations to {}:{} failed", host, port, e);
+        nextConnectAttempt = System.nanoTime() + RECONNECT_DELAY_NANOS;
+        close();
+      }
+      finally {
+        writeStartedNanos = 0;
+      }
+    }
+
+    void abortStalledWrite() {
+      long started = writeStartedNanos;
+      if (started != 0 && System.nanoTime() - started > TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS)) {
+        log.warn("Writing user invalidations to {}:{} timed out, reconnecting", host, port);
+        abort();
+      }
+    }
+
+    // a blocked write fails once the socket is closed, the sender thread of the peer then cleans up
+    void abort() {
+      Socket current = socket;
+      if (current != null) {
+        closeQuietly(current);
+      }
+    }
+
+    private long[] drainPendingUserIds() {
+      long[] userIds = new long[Math.min(pendingUserIds.size(), MAX_BATCH_SIZE)];
+      int count = 0;
+      Iterator<Long> iterator = pendingUserIds.iterator();
+      while (count < userIds.length && iterator.hasNext()) {
+        userIds[count++] = iterator.next();
+        iterator.remove();
+      }
+      return count == userIds.length ? userIds : Arrays.copyOf(userIds, count);
+    }
+
+    private void write(byte[] frame) throws IOException {
+      writeStartedNanos = System.nanoTime();
+      output.write(frame);
+      output.write(sign(mac, challenge, frame));
+      output.flush();
+    }
+
+    private void connect() throws IOException {
+      Socket connection = new Socket();
+      socket = connection;
+      connection.setTcpNoDelay(true);
+      connection.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      connection.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+      long receiverChallenge = new DataInputStream(connection.getInputStream()).readLong();
+      challenge = ByteBuffer.allocate(8).putLong(receiverChallenge).array();
+      mac = newMac(receiverChallenge);
+      output = new BufferedOutputStream(connection.getOutputStream());
+    }
+
+    private void close() {
+      output = null;
+      mac = null;
+      Socket current = socket;
+      if (current != null) {
+        closeQuietly(current);
+        socket = null;
+      }
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    }
+    catch (IOException e) {
+      // already broken
+    }
+  }
+
+  // receiver threads
+
+  private void acceptPeers() {
+    while (!serverSocket.isClosed()) {
+      try {
+        Socket connection = serverSocket.accept();
+        try {
+          receivers.execute(() -> receive(connection));
+        }
+        catch (RejectedExecutionException e) {
+          if (!receivers.isShutdown()) {
+            log.warn("Rejecting the user invalidation connection from {}, user.invalidation.max-connections reached",
+                connection.getRemoteSocketAddress());
+          }
+          closeQuietly(connection);
+        }
+      }
+      catch (IOException e) {
+        if (!serverSocket.isClosed()) {
+          log.warn("Accepting a user invalidation connection failed", e);
+        }
+      }
+    }
+  }
+
+  private void receive(Socket connection) {
+    try (Socket socket = connection;
+         DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+      // unauthenticated connections must not keep a receiver thread, peers send evict all right after connecting
+      socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+      // a peer that disappears without closing the connection is noticed eventually
+      socket.setKeepAlive(true);
+      long connectionChallenge = random.nextLong();
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      out.writeLong(connectionChallenge);
+      out.flush();
+      byte[] challenge = ByteBuffer.allocate(8).putLong(connectionChallenge).array();
+      Mac mac = newMac(connectionChallenge);
+
+      // every connection carries the frames of one sender, their versions only grow
+      long lastVersion = Long.MIN_VALUE;
+      byte[] header = new byte[HEADER_LENGTH];
+      byte[] signature = new byte[MAC_LENGTH];
+      while (true) {
+        in.readFully(header);
+        ByteBuffer headerFields = ByteBuffer.wrap(header);
+        long frameOrigin = headerFields.getLong();
+        long frameVersion = headerFields.getLong();
+        int count = headerFields.getInt();
+        if (count < EVICT_ALL || count > MAX_BATCH_SIZE) {
+          throw new IOException("Invalid user invalidation frame with " + count + " user ids");
+        }
+        byte[] body = new byte[Math.max(count, 0) * 8];
+        in.readFully(body);
+        in.readFully(signature);
+        if (!MessageDigest.isEqual(signature, sign(mac, challenge, header, body))) {
+          log.warn("Closing the user invalidation connection from {}, a frame had an invalid mac",
+              socket.getRemoteSocketAddress());
+          return;
+        }
+        // authenticated, the peer may be silent for as long as no users change
+        socket.setSoTimeout(0);
+        if (frameOrigin == origin || frameVersion <= lastVersion) {
+          continue;
+        }
+        lastVersion = frameVersion;
+        long[] userIds = new long[Math.max(count, 0)];
+        ByteBuffer.wrap(body).asLongBuffer().get(userIds);
+        if (count == EVICT_ALL) {
+          listener.invalidatedAll();
+        }
+        else {
+          listener.invalidated(userIds);
+        }
+      }
+    }
+    catch (EOFException e) {
+      // the peer closed the connection
+    }
+    catch (IOException | RuntimeException e) {
+      log.debug("Receiving user invalidations failed", e);
+    }
+  }
+}
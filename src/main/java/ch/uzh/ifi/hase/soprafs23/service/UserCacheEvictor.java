@@ -0,0 +1,43 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * User Cache Evictor
+ * Drops everything this instance caches about users that another instance changed.
+ * Username lookups are cached as query results, which cannot be evicted per user,
+ * so the whole region is dropped once per batch.
+ */
+@Component
+public class UserCacheEvictor implements UserInvalidationListener {
+
+  private final Cache cache;
+  private final UserListResponseCache userListResponseCache;
+
+  public UserCacheEvictor(EntityManagerFactory entityManagerFactory, UserListResponseCache userListResponseCache) {
+    this.cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+    this.userListResponseCache = userListResponseCache;
+  }
+
+  @Override
+  public void invalidated(long[] userIds) {
+    for (long userId : userIds) {
+      cache.evictEntityData(User.class, userId);
+    }
+    cache.evictQueryRegion(UserRepository.USERNAME_QUERY_REGION);
+    userListResponseCache.invalidate();
+  }
+
+  @Override
+  public void invalidatedAll() {
+    cache.evictEntityData(User.class);
+    cache.evictQueryRegions();
+    userListResponseCache.invalidate();
+  }
+}
@@ -0,0 +1,131 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserEventType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * User Event Log
+ * Append-only change feed of user lifecycle events (create, login, profile edit,
+ * logout). Request threads only put the event into a UserEventRingBuffer; a
+ * background thread writes the events in batches to the log file and forces
+ * each batch to disk with one fsync.
+ *
+ * Every line has the form: timestamp,type,userId
+ */
+@Component
+@Lazy(false)
+public class UserEventLog implements InitializingBean, DisposableBean {
+
+  private static final int MAX_BATCH_SIZE = 4096;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final Logger log = LoggerFactory.getLogger(UserEventLog.class);
+
+  private final boolean enabled;
+  private final Path logFile;
+  private final UserEventRingBuffer ringBuffer;
+  private final StringBuilder batch = new StringBuilder();
+
+  private FileChannel channel;
+  private Thread writerThread;
+  private volatile boolean running;
+
+  public UserEventLog(@Value("${user.events.enabled:false}") boolean enabled,
+                      @Value("${user.events.path:user-events.log}") String logPath,
+                      @Value("${user.events.buffer-size:65536}") int bufferSize) {
+    this.enabled = enabled;
+    this.logFile = Paths.get(logPath);
+    this.ringBuffer = new UserEventRingBuffer(bufferSize);
+  }
+
+  /**
+   * Records an event without blocking. If the buffer is full the event is dropped
+   * and counted, see getDroppedEvents().
+   */
+  public void publish(UserEventType type, long userId) {
+    if (enabled) {
+      ringBuffer.tryPublish(System.currentTimeMillis(), type, userId);
+    }
+  }
+
+  public long getDroppedEvents() {
+    return ringBuffer.getDroppedEvents();
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    if (!enabled) {
+      return;
+    }
+    channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    running = true;
+    writerThread = new Thread(this::writeEvents, "user-event-log");
+    writerThread.setDaemon(true);
+    writerThread.start();
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    if (writerThread == null) {
+      return;
+    }
+    running = false;
+    LockSupport.unpark(writerThread);
+    writerThread.join(TimeUnit.SECONDS.toMillis(5));
+    channel.close();
+    if (getDroppedEvents() > 0) {
+      log.warn("{} user events were dropped because the event buffer was full", getDroppedEvents());
+    }
+  }
+
+  private void writeEvents() {
+    while (running) {
+      if (!writeBatch()) {
+        LockSupport.parkNanos(IDLE_PARK_NANOS);
+      }
+    }
+    // write what was published before the shutdown
+    while (writeBatch()) {
+      // keep draining
+    }
+  }
+
+  // writes one batch of events and forces it to disk, returns false if there was nothing to write
+  private boolean writeBatch() {
+    batch.setLength(0);
+    int events = ringBuffer.drain((timestamp, type, userId) -> batch.append(Instant.ofEpochMilli(timestamp))
+        .append(',').append(type).append(',').append(userId).append('\n'), MAX_BATCH_SIZE);
+    if (events == 0) {
+      return false;
+    }
+    try {
+      ByteBuffer bytes = ByteBuffer.wrap(batch.toString().getBytes(StandardCharsets.UTF_8));
+      while (bytes.hasRemaining()) {
+        channel.write(bytes);
+      }
+      channel.force(false);
+    }
+    catch (IOException e) {
+      log.error("Writing {} user events to {} failed", events, logFile, e);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,110 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserEventType;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * User Event Ring Buffer
+ * Preallocated multi-producer / single-consumer ring buffer for user lifecycle
+ * events. Producers claim a sequence with a CAS and never block: if the consumer
+ * is a full ring behind, the event is dropped and counted instead. The event
+ * fields live in parallel arrays, so publishing does not allocate.
+ */
+public class UserEventRingBuffer {
+
+  /**
+   * Receives the events drained from the buffer, in publishing order.
+   */
+  public interface EventHandler {
+    void onEvent(long timestamp, UserEventType type, long userId);
+  }
+
+  private final int capacity;
+  private final int mask;
+
+  private final long[] timestamps;
+  private final UserEventType[] types;
+  private final long[] userIds;
+  // sequence number of the event stored in each slot, written last by the producer
+  private final AtomicLongArray published;
+
+  private final AtomicLong claimed = new AtomicLong();
+  private final AtomicLong consumed = new AtomicLong();
+  private final LongAdder dropped = new LongAdder();
+
+  public UserEventRingBuffer(int capacity) {
+    if (Integer.bitCount(capacity) != 1) {
+      throw new IllegalArgumentException("capacity must be a power of two");
+    }
+    this.capacity = capacity;
+    this.mask = capacity - 1;
+    this.timestamps = new long[capacity];
+    this.types = new UserEventType[capacity];
+    this.userIds = new long[capacity];
+    this.published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.set(i, -1);
+    }
+  }
+
+  /**
+   * Adds an event to the buffer.
+   *
+   * @return false if the buffer was full and the event was dropped
+   */
+  public boolean tryPublish(long timestamp, UserEventType type, long userId) {
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed.get() >= capacity) {
+        dropped.increment();
+        return false;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+    int slot = (int) (sequence & mask);
+    timestamps[slot] = timestamp;
+    types[slot] = type;
+    userIds[slot] = userId;
+    published.set(slot, sequence);
+    return true;
+  }
+
+  /**
+   * Hands up to maxEvents published events to the handler. Stops early at the
+   * first slot whose producer has not finished writing yet. Must only be called
+   * by the consumer thread.
+   *
+   * @return the number of events handled
+   */
+  public int drain(EventHandler handler, int maxEvents) {
+    long next = consumed.get();
+    int handled = 0;
+    while (handled < maxEvents) {
+      int slot = (int) (next & mask);
+      if (published.get(slot) != next) {
+        break;
+      }
+      handler.onEvent(timestamps[slot], types[slot], userIds[slot]);
+      types[slot] = null;
+      next++;
+      handled++;
+    }
+    if (handled > 0) {
+      // frees the slots for the producers
+      consumed.set(next);
+    }
+    return handled;
+  }
+
+  public long getDroppedEvents() {
+    return dropped.sum();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+}
@@ -0,0 +1,16 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+/**
+ * User Invalidation Bus
+ * Tells the other instances of the service that a user changed, so they drop
+ * their cached copies (second-level cache, username lookups, GET /users body).
+ * UserService publishes once a write has committed; the local caches are
+ * already up to date at that point.
+ */
+public interface UserInvalidationBus {
+
+  /**
+   * Queues the user for the next broadcast. Must not block the caller.
+   */
+  void publish(long userId);
+}
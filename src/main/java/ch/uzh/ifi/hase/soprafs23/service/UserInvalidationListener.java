@@ -0,0 +1,14 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+/**
+ * Receives the invalidations another instance broadcast on the UserInvalidationBus.
+ */
+public interface UserInvalidationListener {
+
+  void invalidated(long[] userIds);
+
+  /**
+   * Called when invalidations may have been lost (e.g. after a reconnect), every cached user is suspect.
+   */
+  void invalidatedAll();
+}
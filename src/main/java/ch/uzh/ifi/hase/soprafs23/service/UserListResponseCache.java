@@ -0,0 +1,149 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.UserGetDTO;
+import ch.uzh.ifi.hase.soprafs23.rest.mapper.DTOMapper;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * User List Response Cache
+ * Keeps the JSON body of GET /users (plain and gzipped) ready to be written as
+ * it is. UserService calls invalidate() once a write has committed; the body
+ * is then rebuilt in the background at most user.list-cache.max-staleness
+ * milliseconds later, so a burst of writes causes a single rebuild. Readers
+ * always get the last complete body and never wait for a rebuild.
+ */
+@Component
+@Lazy(false)
+public class UserListResponseCache implements DisposableBean {
+
+  /**
+   * One pre-serialized version of the user list.
+   */
+  public static final class Snapshot {
+    private final byte[] json;
+    private final byte[] gzippedJson;
+
+    private Snapshot(byte[] json, byte[] gzippedJson) {
+      this.json = json;
+      this.gzippedJson = gzippedJson;
+    }
+
+    public static Snapshot of(byte[] json) {
+      ByteArrayOutputStream gzipped = new ByteArrayOutputStream(json.length / 4 + 64);
+      try (GZIPOutputStream gzip = new GZIPOutputStream(gzipped)) {
+        gzip.write(json);
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return new Snapshot(json, gzipped.toByteArray());
+    }
+
+    public byte[] getJson() {
+      return json;
+    }
+
+    public byte[] getGzippedJson() {
+      return gzippedJson;
+    }
+  }
+
+  private final Logger log = LoggerFactory.getLogger(UserListResponseCache.class);
+
+  private final UserRepository userRepository;
+  private final ShardRouter shardRouter;
+  private final ObjectMapper objectMapper;
+  private final boolean enabled;
+  private final long maxStalenessMillis;
+  private final ScheduledExecutorService rebuilder =
+      Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("user-list-cache-"));
+  private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+
+  private volatile Snapshot snapshot;
+
+  public UserListResponseCache(@Qualifier("userRepository") UserRepository userRepository, ShardRouter shardRouter,
+                               ObjectMapper objectMapper,
+                               @Value("${user.list-cache.enabled:true}") boolean enabled,
+                               @Value("${user.list-cache.max-staleness:200}") long maxStalenessMillis) {
+    this.userRepository = userRepository;
+    this.shardRouter = shardRouter;
+    this.objectMapper = objectMapper;
+    this.enabled = enabled;
+    this.maxStalenessMillis = maxStalenessMillis;
+  }
+
+  /**
+   * @return the last built list, or null if it is not available (yet) and the
+   * caller has to build the response itself
+   */
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Marks the list as changed. Does not block, the rebuild happens in the background.
+   */
+  public void invalidate() {
+    if (enabled && rebuildScheduled.compareAndSet(false, true)) {
+      rebuilder.schedule(this::rebuild, maxStalenessMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void buildInitialSnapshot() {
+    if (enabled && rebuildScheduled.compareAndSet(false, true)) {
+      rebuilder.execute(this::rebuild);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    rebuilder.shutdownNow();
+  }
+
+  private void rebuild() {
+    // writes from now on schedule another rebuild, so no change is missed
+    rebuildScheduled.set(false);
+    try {
+      List<User> users = shardRouter.onAllShards(userRepository::findAll);
+      if (shardRouter.isSharded()) {
+        users.sort(Comparator.comparing(User::getId));
+      }
+      List<UserGetDTO> userGetDTOs = new ArrayList<>(users.size());
+      for (User user : users) {
+        userGetDTOs.add(DTOMapper.INSTANCE.convertEntityToUserGetDTO(user));
+      }
+      snapshot = Snapshot.of(objectMapper.writeValueAsBytes(userGetDTOs));
+    }
+    catch (RuntimeException | IOException e) {
+      // serve nothing rather than an outdated list
+      snapshot = null;
+      log.error("Rebuilding the user list response failed", e);
+    }
+  }
+}
@@ -1,22 +1,38 @@
 package ch.uzh.ifi.hase.soprafs23.service;
 
+import ch.uzh.ifi.hase.soprafs23.constant.UserEventType;
 import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.exceptions.InvalidCredentialsException;
+import ch.uzh.ifi.hase.soprafs23.exceptions.UserNotFoundException;
+import ch.uzh.ifi.hase.soprafs23.exceptions.UsernameNotUniqueException;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
 import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
 import javassist.NotFoundException;
+import org.hibernate.exception.ConstraintViolationException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.http.HttpStatus;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.web.server.ResponseStatusException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.sql.SQLException;
 import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -25,128 +41,329 @@ import java.util.UUID;
  * the user
  * (e.g., it creates, modifies, deletes, finds). The result will be passed back
  * to the caller.
+ * Password hashing takes far longer than any query, so createUser and the login
+ * run without a surrounding transaction: they hash outside of it and only hold
+ * a database connection for the short reads and writes in shardRouter.onShard.
  */
 @Service
 @Transactional
 public class UserService {
 
+  private static final int FEBRUARY_29 = User.birthdayDayOfYear(LocalDate.of(2000, 2, 29));
+
   private final Logger log = LoggerFactory.getLogger(UserService.class);
 
   private final UserRepository userRepository;
+  private final SessionActivityTracker sessionActivityTracker;
+  private final UserEventLog userEventLog;
+  private final PasswordHasher passwordHasher;
+  private final UserListResponseCache userListResponseCache;
+  // every repository call goes through the router, with a single shard it just runs the call
+  private final ShardRouter shardRouter;
+  private final UsernameDirectory usernameDirectory;
+  // tells the other instances to drop their cached copies of changed users
+  private final UserInvalidationBus userInvalidationBus;
+  // concurrent requests for the same profile share one database load
+  private final SingleFlight<Long, Optional<User>> profileLoads = new SingleFlight<>();
 
   @Autowired
-  public UserService(@Qualifier("userRepository") UserRepository userRepository) {
+  public UserService(@Qualifier("userRepository") UserRepository userRepository,
+                     SessionActivityTracker sessionActivityTracker, UserEventLog userEventLog,
+                     PasswordHasher passwordHasher, UserListResponseCache userListResponseCache,
+                     ShardRouter shardRouter, UsernameDirectory usernameDirectory,
+                     UserInvalidationBus userInvalidationBus) {
     this.userRepository = userRepository;
+    this.sessionActivityTracker = sessionActivityTracker;
+    this.userEventLog = userEventLog;
+    this.passwordHasher = passwordHasher;
+    this.userListResponseCache = userListResponseCache;
+    this.shardRouter = shardRouter;
+    this.usernameDirectory = usernameDirectory;
+    this.userInvalidationBus = userInvalidationBus;
   }
 
   public List<User> getUsers() {
-    return this.userRepository.findAll();
+    if (!shardRouter.isSharded()) {
+      return this.userRepository.findAll();
+    }
+    List<User> users = shardRouter.onAllShards(userRepository::findAll);
+    users.sort(Comparator.comparing(User::getId));
+    return users;
   }
 
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
   public User createUser(User newUser) {
     newUser.setToken(UUID.randomUUID().toString());
     newUser.setStatus(UserStatus.ONLINE);
     newUser.setCreationDate();
-    checkIfUserExists(newUser);
-    // saves the given entity but data is only persisted in the database once
-    // flush() is called
-    newUser = userRepository.save(newUser);
-    userRepository.flush();
+    newUser.setPassword(passwordHasher.hash(newUser.getPassword()));
+    String username = newUser.getUsername();
+    if (!usernameDirectory.reserve(username, null)) {
+      throw UsernameNotUniqueException.onCreate();
+    }
+    try {
+      // saves the given entity but data is only persisted in the database once
+      // flush() is called
+      User userToSave = newUser;
+      newUser = shardRouter.onShard(shardRouter.nextInsertShard(), () -> {
+        User savedUser = userRepository.save(userToSave);
+        userRepository.flush();
+        return savedUser;
+      });
+    }
+    catch (DataIntegrityViolationException e) {
+      usernameDirectory.release(username);
+      // the username is not checked up front, the unique constraint rejects duplicates
+      if (isUsernameConflict(e)) {
+        throw UsernameNotUniqueException.onCreate();
+      }
+      throw e;
+    }
+    usernameDirectory.assign(username, newUser.getId());
+    sessionActivityTracker.touch(newUser.getId());
+    publishEvent(UserEventType.CREATE, newUser.getId());
+    invalidateUserList();
+    publishInvalidation(newUser.getId());
 
     log.debug("Created Information for User: {}", newUser);
     return newUser;
   }
 
-  /**
-   * This is a helper method that will check the uniqueness criteria of the
-   * username and the password
-   * defined in the User entity. The method will do nothing if the input is unique
-   * and throw an error otherwise.
-   *
-   * @param userToBeCreated
-   * @throws org.springframework.web.server.ResponseStatusException
-   * @see User
-   */
-  private void checkIfUserExists(User userToBeCreated) {
-    User userByUsername = userRepository.findByUsername(userToBeCreated.getUsername());
-
-    String errorMessage = "add User failed because username already exists";
-    if (userByUsername != null) {
-      throw new ResponseStatusException(HttpStatus.CONFLICT, errorMessage);
-    }
-  }
-
   /* If the entered username does not exist or the password does not match, reject the login attempt. */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public User checkIfUserExistsReverse(User userToBeLoggedIn) {
-        User userByUsername = userRepository.findByUsername(userToBeLoggedIn.getUsername());
+        int shard = usernameDirectory.shardOf(userToBeLoggedIn.getUsername());
+        User userByUsername = shard == UsernameDirectory.UNKNOWN_SHARD
+                ? null
+                : shardRouter.onShard(shard, () -> findLoginUser(userToBeLoggedIn.getUsername()));
 
-        String baseErrorMessage = "Sorry, your username or password was incorrect. Please double-check your credentials";
-        if (userByUsername == null || !userByUsername.getPassword().equals(userToBeLoggedIn.getPassword()) ) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
-                    String.format(baseErrorMessage));
-        }else{
-            userByUsername.setStatus(UserStatus.ONLINE);
-            userByUsername = userRepository.save(userByUsername);
-            userRepository.flush();
+        // verifying and rehashing run without a transaction, see the class comment
+        if (userByUsername == null) {
+            // an unknown username takes as long as a wrong password, the response time does not reveal which names exist
+            passwordHasher.matches(userToBeLoggedIn.getPassword(), passwordHasher.dummyHash());
+            throw new InvalidCredentialsException();
+        }
+        if (!passwordHasher.matches(userToBeLoggedIn.getPassword(), userByUsername.getPassword())) {
+            throw new InvalidCredentialsException();
+        }
+        // plain text passwords and hashes with an outdated cost are rehashed with the current cost
+        String upgradedPassword = passwordHasher.needsUpgrade(userByUsername.getPassword())
+                ? passwordHasher.hash(userToBeLoggedIn.getPassword())
+                : null;
+        return shardRouter.onShard(shard, () -> logIn(userByUsername.getId(), upgradedPassword));
+    }
 
+    private User findLoginUser(String username) {
+        User userByUsername = userRepository.findByUsernameNormalized(User.normalizeUsername(username));
+        if (userByUsername == null || !userByUsername.getUsername().equals(username)) {
+            // rows the backfill could not normalize because their name collides with another one, e.g. "ALICE"
+            // next to "Alice", are only found by their exact name; an exact match wins over a normalized one
+            User userByExactUsername = userRepository.findByUsername(username);
+            if (userByExactUsername != null) {
+                userByUsername = userByExactUsername;
+            }
         }
         return userByUsername;
     }
 
+    private User logIn(long userId, String upgradedPassword) {
+        // usually a second-level cache hit
+        User user = userRepository.findById(userId).orElseThrow(InvalidCredentialsException::new);
+        boolean goesOnline = user.getStatus() != UserStatus.ONLINE;
+        if (goesOnline || upgradedPassword != null) {
+            // a single update statement, the returned copy carries the new values
+            userRepository.updateStatusAndPassword(userId, UserStatus.ONLINE, upgradedPassword);
+            user = user.copy();
+            user.setStatus(UserStatus.ONLINE);
+            if (upgradedPassword != null) {
+                user.setPassword(upgradedPassword);
+            }
+            publishInvalidation(userId);
+        }
+        if (goesOnline) {
+            invalidateUserList();
+        }
+        sessionActivityTracker.touch(userId);
+        publishEvent(UserEventType.LOGIN, userId);
+        return user;
+    }
+
+    /* Requests waiting for a running load of the same profile must not hold a connection, findById opens its own transaction. */
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public User getUserProfile(long id) {
-        Optional<User> outUser = userRepository.findById(id);
+        Optional<User> outUser = profileLoads.execute(id,
+                () -> shardRouter.onShard(shardRouter.shardOf(id), () -> userRepository.findById(id)));
 
-        String errorMessage = "user with " + id + " was not found";
         if(outUser.isEmpty()){
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND , errorMessage);
+            throw new UserNotFoundException();
         }
         // outUser is of type Optional. To get the actual User object I use the get() method.
-        return outUser.get();
+        // the loaded entity is shared with the joined requests, each of them gets its own detached copy
+        return outUser.get().copy();
     }
 
-    public User putChanges(Long userId, User userInput) {
-        Optional<User> optionalUserInDatabase = userRepository.findById(userId);
-        User userInDatabase;
-        if(optionalUserInDatabase.isPresent()){
-            userInDatabase = optionalUserInDatabase.get();
-        }else{
-            String errorMessage = "user with userId " + userId + " was not found";
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND , errorMessage);
+    /* Users whose birthday falls within the given number of days starting at from, ordered by the upcoming date. */
+    public List<User> getUpcomingBirthdays(LocalDate from, int days) {
+        // each day of the range (across the year end if needed) maps to one birthdayDayOfYear
+        Set<Integer> birthdayDaysOfYear = new LinkedHashSet<>();
+        for (int i = 0; i < days; i++) {
+            LocalDate date = from.plusDays(i);
+            birthdayDaysOfYear.add(User.birthdayDayOfYear(date));
+            // people born on February 29 celebrate on February 28 in other years
+            if (!date.isLeapYear() && date.getMonthValue() == 2 && date.getDayOfMonth() == 28) {
+                birthdayDaysOfYear.add(FEBRUARY_29);
+            }
         }
-        // check if username was edited and is unique
+        List<User> users = new ArrayList<>(
+                shardRouter.onAllShards(() -> userRepository.findByBirthdayDayOfYearIn(birthdayDaysOfYear)));
+
+        int fromDayOfYear = User.birthdayDayOfYear(from);
+        users.sort(Comparator.comparingInt((User user) -> Math.floorMod(user.getBirthdayDayOfYear() - fromDayOfYear, 366))
+                .thenComparing(User::getId));
+        return users;
+    }
+
+    /* Writes the edited fields with a single update statement, fields that are null stay unchanged. */
+    public void putChanges(Long userId, User userInput) {
         String newUsername = userInput.getUsername();
-        if(newUsername != null && !userInDatabase.getUsername().equals(newUsername)){
-            // Check if the new username is unique
-            checkIfUsernameUnique(newUsername);
-            userInDatabase.setUsername(newUsername);
-        }
-        // check if birthday was edited
         LocalDate newBirthday = userInput.getBirthday();
-        if(newBirthday != null && userInDatabase.getBirthday() != newBirthday){
-            userInDatabase.setBirthday(newBirthday);
+
+        if (!usernameDirectory.reserve(newUsername, userId)) {
+            throw UsernameNotUniqueException.onRename();
         }
-        userRepository.save(userInDatabase);
-        userRepository.flush();
-        return userInDatabase;
+        boolean updated;
+        try {
+            updated = shardRouter.onShard(shardRouter.shardOf(userId),
+                    () -> userRepository.updateProfile(userId, newUsername, newBirthday));
+        }
+        catch (DataIntegrityViolationException e) {
+            usernameDirectory.release(newUsername);
+            if (isUsernameConflict(e)) {
+                // the unique constraint on username rejected the rename
+                throw UsernameNotUniqueException.onRename();
+            }
+            throw e;
+        }
+
+        if (!updated) {
+            usernameDirectory.release(newUsername);
+            throw new UserNotFoundException();
+        }
+        usernameDirectory.assign(newUsername, userId);
+        sessionActivityTracker.touch(userId);
+        publishEvent(UserEventType.PROFILE_EDIT, userId);
+        invalidateUserList();
+        publishInvalidation(userId);
     }
 
-    // checks if the new username is unique
-    private void checkIfUsernameUnique(String newUsername) {
-        User userByUsername = userRepository.findByUsername(newUsername);
+    public void setOffline(Long userId) {
+        // users that are already offline or do not exist are not logged out again
+        boolean updated = !shardRouter.onShard(shardRouter.shardOf(userId),
+                () -> userRepository.updateStatus(List.of(userId), UserStatus.OFFLINE)).isEmpty();
+        if (updated) {
+            publishEvent(UserEventType.LOGOUT, userId);
+            invalidateUserList();
+            publishInvalidation(userId);
+        }
+        sessionActivityTracker.remove(userId);
+    }
 
-        String errorMessage = "The username provided is not unique. Therefore, the username could not be changed!";
-        if (userByUsername != null) {
-            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, errorMessage);
+    /* Logs out all given users, see setStatusOnShards. */
+    public void setOffline(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return;
+        }
+        for (Long userId : setStatusOnShards(userIds, UserStatus.OFFLINE)) {
+            publishEvent(UserEventType.LOGOUT, userId);
+            publishInvalidation(userId);
+        }
+        for (Long userId : userIds) {
+            sessionActivityTracker.remove(userId);
         }
+        invalidateUserList();
     }
 
-    public void setOffline(Long userId) {
-        Optional<User> userByIdOptional = userRepository.findById(userId);
-        if(userByIdOptional.isPresent()){
-            User userById = userByIdOptional.get();
-            userById.setStatus(UserStatus.OFFLINE);
-            userRepository.save(userById);
-            userRepository.flush();
+    /* Sets all given users OFFLINE, used for sessions that timed out. */
+    public int expireSessions(Collection<Long> userIds) {
+        if (userIds.isEmpty()) {
+            return 0;
+        }
+        List<Long> updatedUserIds = setStatusOnShards(userIds, UserStatus.OFFLINE);
+        for (Long userId : updatedUserIds) {
+            publishEvent(UserEventType.SESSION_EXPIRED, userId);
+            publishInvalidation(userId);
+        }
+        invalidateUserList();
+        return updatedUserIds.size();
+    }
+
+    /* True if one of the unique constraints on the username failed, other violations are bugs and stay 500s. */
+    static boolean isUsernameConflict(DataIntegrityViolationException e) {
+        String constraintName;
+        if (e.getCause() instanceof ConstraintViolationException) {
+            constraintName = ((ConstraintViolationException) e.getCause()).getConstraintName();
+        }
+        else if (e.getCause() instanceof SQLException) {
+            // the JDBC updates of UserUpdateRepository, H2 names the violated index in the message
+            constraintName = e.getCause().getMessage();
+        }
+        else {
+            return false;
+        }
+        if (constraintName == null) {
+            return false;
+        }
+        // databases decorate the name, e.g. H2 reports "PUBLIC.UK_USER_USERNAME_INDEX_2 ON PUBLIC.USER(USERNAME)"
+        constraintName = constraintName.toUpperCase(Locale.ROOT);
+        return constraintName.contains(User.UNIQUE_USERNAME) || constraintName.contains(User.UNIQUE_USERNAME_NORMALIZED);
+    }
+
+    /*
+     * One set-based update statement per shard that holds any of the given users.
+     * Returns the ids of the users whose status actually changed.
+     */
+    private List<Long> setStatusOnShards(Collection<Long> userIds, UserStatus status) {
+        if (!shardRouter.isSharded()) {
+            return userRepository.updateStatus(userIds, status);
+        }
+        Map<Integer, List<Long>> userIdsByShard = new HashMap<>();
+        for (Long userId : userIds) {
+            userIdsByShard.computeIfAbsent(shardRouter.shardOf(userId), shard -> new ArrayList<>()).add(userId);
+        }
+        List<Long> updatedUserIds = new ArrayList<>();
+        for (Map.Entry<Integer, List<Long>> shardUserIds : userIdsByShard.entrySet()) {
+            updatedUserIds.addAll(shardRouter.onShard(shardUserIds.getKey(),
+                    () -> userRepository.updateStatus(shardUserIds.getValue(), status)));
+        }
+        return updatedUserIds;
+    }
+
+    /* The event log only sees changes that were committed, a rolled back request leaves no event behind. */
+    private void publishEvent(UserEventType type, long userId) {
+        afterCommit(() -> userEventLog.publish(type, userId));
+    }
+
+    /* A rebuild that started before the commit would still read the old rows, so the list is invalidated after it. */
+    private void invalidateUserList() {
+        afterCommit(userListResponseCache::invalidate);
+    }
+
+    /* Peers that reload the user before the commit would cache the old row again. */
+    private void publishInvalidation(long userId) {
+        afterCommit(() -> userInvalidationBus.publish(userId));
+    }
+
+    /* Runs the action once the current transaction committed, or right away outside of a transaction. */
+    private static void afterCommit(Runnable action) {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            action.run();
+            return;
         }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                action.run();
+            }
+        });
     }
 }
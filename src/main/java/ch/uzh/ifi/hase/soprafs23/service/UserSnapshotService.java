@@ -0,0 +1,301 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Date;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * User Snapshot Service
+ * The database only lives in memory, so this service dumps the USER table into a
+ * compact binary file and loads it back before the application accepts traffic.
+ * A snapshot is written on shutdown and every user.snapshot.interval milliseconds.
+ * The bean is never lazy, so the restore also happens with the fast-startup profile.
+ *
+ * File layout: a header (magic, format version) followed by one length-prefixed
+ * record per user: id, status ordinal, creation date and birthday as epoch days
+ * and password, username, username_normalized and token as length-prefixed UTF-8
+ * strings (length -1 for null).
+ * username_normalized is restored as it was written: rows whose names collide
+ * after normalization keep null (see UsernameNormalizationBackfill), normalizing
+ * them again would violate the unique constraint. Version 1 snapshots did not
+ * contain the column, their rows are restored with null and backfilled.
+ */
+@Service
+@Lazy(false)
+@ConditionalOnProperty(name = "user.snapshot.enabled", havingValue = "true")
+public class UserSnapshotService implements InitializingBean, DisposableBean {
+
+  private static final int MAGIC = 0x55534e50; // "USNP"
+  private static final int FORMAT_VERSION = 2;
+  private static final int FORMAT_VERSION_WITHOUT_NORMALIZED_USERNAME = 1;
+  private static final int NO_DATE = Integer.MIN_VALUE;
+  private static final int RESTORE_BATCH_SIZE = 1000;
+
+  private static final String SELECT_USERS =
+      "select id, password, username, username_normalized, token, status, creation_date, birthday from user";
+  private static final String INSERT_USER =
+      "insert into user (id, password, username, username_normalized, token, status, creation_date, birthday, "
+          + "birthday_day_of_year) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  // explicit types, otherwise the driver is asked for the type of every null parameter
+  private static final int[] INSERT_USER_TYPES = { Types.BIGINT, Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+      Types.VARCHAR, Types.INTEGER, Types.DATE, Types.DATE, Types.INTEGER };
+
+  private final Logger log = LoggerFactory.getLogger(UserSnapshotService.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final Path snapshotFile;
+
+  // the entity manager factory is only injected so the schema exists before restore() runs
+  public UserSnapshotService(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory,
+                             @Value("${user.snapshot.path:user-snapshot.bin}") String snapshotPath,
+                             @Value("${user.shards.count:1}") int shardCount) {
+    // the snapshot holds one table and restores one id sequence, it does not know about shards
+    if (shardCount > 1) {
+      throw new IllegalStateException("user.snapshot.enabled cannot be combined with user.shards.count > 1");
+    }
+    this.jdbcTemplate = jdbcTemplate;
+    this.snapshotFile = Paths.get(snapshotPath);
+  }
+
+  @Override
+  public void afterPropertiesSet() throws IOException {
+    restore();
+  }
+
+  // the users changed since the last scheduled snapshot are lost if this fails, so it is logged as an error
+  @Override
+  public void destroy() throws IOException {
+    try {
+      writeSnapshot();
+    }
+    catch (IOException | RuntimeException e) {
+      log.error("Writing the final user snapshot to {} failed, changes since the last snapshot are lost",
+          snapshotFile, e);
+      throw e;
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${user.snapshot.interval:300000}", initialDelayString = "${user.snapshot.interval:300000}")
+  public void scheduledSnapshot() {
+    try {
+      writeSnapshot();
+    }
+    catch (IOException e) {
+      log.error("Writing the user snapshot to {} failed", snapshotFile, e);
+    }
+  }
+
+  /**
+   * Writes all users into a temporary file and atomically replaces the previous
+   * snapshot with it, so a crash while writing never leaves a truncated snapshot.
+   *
+   * @return the number of users written
+   */
+  public synchronized long writeSnapshot() throws IOException {
+    Path tempFile = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+    long[] count = { 0 };
+    try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+      buffer.putInt(MAGIC).putInt(FORMAT_VERSION);
+
+      jdbcTemplate.query(SELECT_USERS, rs -> {
+        byte[] password = rs.getString("password").getBytes(StandardCharsets.UTF_8);
+        byte[] username = rs.getString("username").getBytes(StandardCharsets.UTF_8);
+        String usernameNormalizedValue = rs.getString("username_normalized");
+        byte[] usernameNormalized = usernameNormalizedValue == null
+            ? null : usernameNormalizedValue.getBytes(StandardCharsets.UTF_8);
+        byte[] token = rs.getString("token").getBytes(StandardCharsets.UTF_8);
+        int recordLength = Long.BYTES + 1 + 2 * Integer.BYTES + 4 * Integer.BYTES + password.length
+            + username.length + (usernameNormalized == null ? 0 : usernameNormalized.length) + token.length;
+        try {
+          ensureCapacity(channel, buffer, Integer.BYTES + recordLength);
+          buffer.putInt(recordLength);
+          buffer.putLong(rs.getLong("id"));
+          buffer.put((byte) rs.getInt("status"));
+          buffer.putInt(toEpochDay(rs.getDate("creation_date")));
+          buffer.putInt(toEpochDay(rs.getDate("birthday")));
+          putBytes(buffer, password);
+          putBytes(buffer, username);
+          putBytes(buffer, usernameNormalized);
+          putBytes(buffer, token);
+        }
+        catch (IOException e) {
+          throw new IllegalStateException(e);
+        }
+        count[0]++;
+      });
+
+      buffer.flip();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(true);
+    }
+    Files.move(tempFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    log.info("Wrote snapshot of {} users to {}", count[0], snapshotFile);
+    return count[0];
+  }
+
+  /**
+   * Bulk-loads the snapshot file with batched inserts and builds the indexes of the
+   * table afterwards. Does nothing if there is no snapshot or if the table already
+   * contains users.
+   *
+   * @return the number of users restored
+   */
+  public synchronized long restore() throws IOException {
+    if (!Files.exists(snapshotFile)) {
+      log.info("No user snapshot found at {}, starting with an empty user table", snapshotFile);
+      return 0;
+    }
+    Long existingUsers = jdbcTemplate.queryForObject("select count(*) from user", Long.class);
+    if (existingUsers != null && existingUsers > 0) {
+      log.warn("User table is not empty, skipping restore from {}", snapshotFile);
+      return 0;
+    }
+
+    long restored = 0;
+    long maxId = 0;
+    // updating the unique constraints and indexes row by row takes most of the time of a restore,
+    // like an SQL script the restore builds them once all rows are inserted
+    List<String> indexStatements = dropIndexes();
+    try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < 2 * Integer.BYTES || buffer.getInt() != MAGIC) {
+        throw new IOException("Not a user snapshot: " + snapshotFile);
+      }
+      int version = buffer.getInt();
+      if (version != FORMAT_VERSION && version != FORMAT_VERSION_WITHOUT_NORMALIZED_USERNAME) {
+        throw new IOException("Unsupported user snapshot version " + version + " in " + snapshotFile);
+      }
+
+      List<Object[]> batch = new ArrayList<>(RESTORE_BATCH_SIZE);
+      while (buffer.hasRemaining()) {
+        buffer.getInt(); // record length, only needed by readers that skip records
+        long id = buffer.getLong();
+        int status = buffer.get();
+        LocalDate creationDate = fromEpochDay(buffer.getInt());
+        LocalDate birthday = fromEpochDay(buffer.getInt());
+        String password = getString(buffer);
+        String username = getString(buffer);
+        String usernameNormalized = version == FORMAT_VERSION ? getString(buffer) : null;
+        String token = getString(buffer);
+
+        batch.add(new Object[] { id, password, username, usernameNormalized, token, status,
+            creationDate, birthday, User.birthdayDayOfYear(birthday) });
+        maxId = Math.max(maxId, id);
+        if (batch.size() == RESTORE_BATCH_SIZE) {
+          jdbcTemplate.batchUpdate(INSERT_USER, batch, INSERT_USER_TYPES);
+          restored += batch.size();
+          batch.clear();
+        }
+      }
+      if (!batch.isEmpty()) {
+        jdbcTemplate.batchUpdate(INSERT_USER, batch, INSERT_USER_TYPES);
+        restored += batch.size();
+      }
+    }
+    finally {
+      indexStatements.forEach(jdbcTemplate::execute);
+    }
+
+    // new users must not collide with the restored ids
+    jdbcTemplate.execute("alter sequence hibernate_sequence restart with " + (maxId + 1));
+    log.info("Restored {} users from {}", restored, snapshotFile);
+    return restored;
+  }
+
+  /**
+   * Drops the unique constraints and the other indexes of the user table, only
+   * the primary key is kept.
+   *
+   * @return the statements that create them again, indexes before the constraints that use them
+   */
+  private List<String> dropIndexes() {
+    List<String> statements = new ArrayList<>(jdbcTemplate.queryForList("select distinct sql from "
+        + "information_schema.indexes where table_name = 'USER' and not primary_key", String.class));
+    List<String> plainIndexes = jdbcTemplate.queryForList("select distinct index_name from "
+        + "information_schema.indexes where table_name = 'USER' and not primary_key and constraint_name is null",
+        String.class);
+    List<Map<String, Object>> constraints = jdbcTemplate.queryForList("select constraint_name, sql from "
+        + "information_schema.constraints where table_name = 'USER' and constraint_type = 'UNIQUE'");
+
+    // dropping a constraint also drops its index
+    for (Map<String, Object> constraint : constraints) {
+      jdbcTemplate.execute("alter table user drop constraint \"" + constraint.get("CONSTRAINT_NAME") + "\"");
+      statements.add((String) constraint.get("SQL"));
+    }
+    for (String index : plainIndexes) {
+      jdbcTemplate.execute("drop index \"" + index + "\"");
+    }
+    return statements;
+  }
+
+  private static void ensureCapacity(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+    if (buffer.remaining() >= bytes) {
+      return;
+    }
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+    if (buffer.capacity() < bytes) {
+      throw new IOException("User record of " + bytes + " bytes does not fit into the write buffer");
+    }
+  }
+
+  private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+    if (bytes == null) {
+      buffer.putInt(-1);
+      return;
+    }
+    buffer.putInt(bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static int toEpochDay(Date date) {
+    return date == null ? NO_DATE : (int) date.toLocalDate().toEpochDay();
+  }
+
+  private static LocalDate fromEpochDay(int epochDay) {
+    return epochDay == NO_DATE ? null : LocalDate.ofEpochDay(epochDay);
+  }
+}
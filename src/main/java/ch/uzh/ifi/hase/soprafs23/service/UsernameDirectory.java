@@ -0,0 +1,88 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Username Directory
+ * With more than one shard, the unique constraint of a single shard no longer
+ * guarantees unique usernames and a lookup by username would have to ask every
+ * shard. This in-memory directory maps every username to the id of its user
+ * (and with that to its shard), so usernames are reserved globally and a login
+ * only queries one shard. Usernames are compared in their normalized form (see
+ * User.normalizeUsername), like the unique index does. UsernameDirectoryLoader
+ * fills it with the users already stored on the shards before the first request.
+ *
+ * With a single shard the directory is disabled: the database enforces unique
+ * usernames and every lookup goes to shard 0.
+ */
+@Component
+public class UsernameDirectory {
+
+  public static final int UNKNOWN_SHARD = -1;
+
+  // placeholder while the user that claimed a username is being inserted, ids start at 1
+  private static final long RESERVED = 0L;
+
+  private final ShardRouter shardRouter;
+  private final boolean enabled;
+  private final ConcurrentMap<String, Long> userIdsByUsername = new ConcurrentHashMap<>();
+  private final ConcurrentMap<Long, String> usernamesByUserId = new ConcurrentHashMap<>();
+
+  public UsernameDirectory(ShardRouter shardRouter) {
+    this.shardRouter = shardRouter;
+    this.enabled = shardRouter.isSharded();
+  }
+
+  /**
+   * @return the shard of the user with this username, UNKNOWN_SHARD if there is no such user
+   */
+  public int shardOf(String username) {
+    if (!enabled) {
+      return 0;
+    }
+    Long userId = username == null ? null : userIdsByUsername.get(User.normalizeUsername(username));
+    return userId == null || userId == RESERVED ? UNKNOWN_SHARD : shardRouter.shardOf(userId);
+  }
+
+  /**
+   * Claims the username for a new user (userId null) or for a rename of the given user.
+   *
+   * @return false if another user has or is just claiming the username
+   */
+  public boolean reserve(String username, Long userId) {
+    if (!enabled || username == null) {
+      return true;
+    }
+    Long owner = userIdsByUsername.putIfAbsent(User.normalizeUsername(username), RESERVED);
+    return owner == null || owner.equals(userId);
+  }
+
+  /**
+   * Gives up a reservation whose insert or rename failed.
+   */
+  public void release(String username) {
+    if (enabled && username != null) {
+      userIdsByUsername.remove(User.normalizeUsername(username), RESERVED);
+    }
+  }
+
+  /**
+   * Records that the user now has this username, a previous username becomes free.
+   */
+  public void assign(String username, long userId) {
+    if (!enabled || username == null) {
+      return;
+    }
+    String normalizedUsername = User.normalizeUsername(username);
+    userIdsByUsername.put(normalizedUsername, userId);
+    String previousUsername = usernamesByUserId.put(userId, normalizedUsername);
+    if (previousUsername != null && !previousUsername.equals(normalizedUsername)) {
+      userIdsByUsername.remove(previousUsername, userId);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Username Directory Loader
+ * Fills the UsernameDirectory with the users that are already stored on the
+ * shards, e.g. after a restart with persistent shard databases. Runs once all
+ * beans are created and before the server accepts requests, reading each shard
+ * in batches of user.shards.directory-batch-size rows ordered by id.
+ */
+@Component
+@Lazy(false)
+public class UsernameDirectoryLoader implements SmartInitializingSingleton {
+
+  private static final String SELECT_BATCH = "select id, username from user where id > ? order by id limit ?";
+
+  private final Logger log = LoggerFactory.getLogger(UsernameDirectoryLoader.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ShardRouter shardRouter;
+  private final UsernameDirectory usernameDirectory;
+  private final int batchSize;
+
+  public UsernameDirectoryLoader(JdbcTemplate jdbcTemplate, ShardRouter shardRouter,
+                                 UsernameDirectory usernameDirectory,
+                                 @Value("${user.shards.directory-batch-size:1000}") int batchSize) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.shardRouter = shardRouter;
+    this.usernameDirectory = usernameDirectory;
+    this.batchSize = batchSize;
+  }
+
+  @Override
+  public void afterSingletonsInstantiated() {
+    // with a single shard the directory is disabled
+    if (shardRouter.isSharded()) {
+      load();
+    }
+  }
+
+  /**
+   * @return the number of users added to the directory
+   */
+  public int load() {
+    int loaded = 0;
+    for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+      long lastId = 0;
+      while (true) {
+        long afterId = lastId;
+        List<Object[]> batch = shardRouter.onShard(shard, () -> jdbcTemplate.query(SELECT_BATCH,
+            (rs, rowNum) -> new Object[] { rs.getLong("id"), rs.getString("username") }, afterId, batchSize));
+        for (Object[] row : batch) {
+          long userId = (Long) row[0];
+          String username = (String) row[1];
+          int owner = usernameDirectory.shardOf(username);
+          if (owner != UsernameDirectory.UNKNOWN_SHARD && owner != shard) {
+            log.warn("Username of user {} is already taken by a user on shard {}", userId, owner);
+            continue;
+          }
+          usernameDirectory.assign(username, userId);
+          loaded++;
+        }
+        if (batch.size() < batchSize) {
+          break;
+        }
+        lastId = (Long) batch.get(batch.size() - 1)[0];
+      }
+    }
+    log.info("Loaded {} usernames from {} shards", loaded, shardRouter.getShardCount());
+    return loaded;
+  }
+}
@@ -0,0 +1,87 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+
+/**
+ * Username Normalization Backfill
+ * Fills in username_normalized for rows written before the column existed, in
+ * batches of user.username-backfill.batch-size rows ordered by id. A row whose
+ * normalized name collides with another row keeps null and is logged; logins of
+ * such users fall back to the exact username lookup until one of them is renamed.
+ */
+@Component
+@Lazy(false)
+public class UsernameNormalizationBackfill {
+
+  private static final String SELECT_BATCH =
+      "select id, username from user where username_normalized is null and id > ? order by id limit ?";
+  private static final String UPDATE_USER =
+      "update user set username_normalized = ? where id = ? and username_normalized is null";
+
+  private final Logger log = LoggerFactory.getLogger(UsernameNormalizationBackfill.class);
+
+  private final JdbcTemplate jdbcTemplate;
+  private final ShardRouter shardRouter;
+  private final int batchSize;
+
+  public UsernameNormalizationBackfill(JdbcTemplate jdbcTemplate, ShardRouter shardRouter,
+                                       @Value("${user.username-backfill.batch-size:500}") int batchSize) {
+    this.jdbcTemplate = jdbcTemplate;
+    this.shardRouter = shardRouter;
+    this.batchSize = batchSize;
+  }
+
+  @EventListener(ApplicationReadyEvent.class)
+  public void backfill() {
+    int normalized = 0;
+    for (int shard = 0; shard < shardRouter.getShardCount(); shard++) {
+      long lastId = 0;
+      while (true) {
+        long afterId = lastId;
+        List<Object[]> batch = shardRouter.onShard(shard, () -> jdbcTemplate.query(SELECT_BATCH,
+            (rs, rowNum) -> new Object[] { User.normalizeUsername(rs.getString("username")), rs.getLong("id") },
+            afterId, batchSize));
+        if (batch.isEmpty()) {
+          break;
+        }
+        normalized += shardRouter.onShard(shard, () -> updateBatch(batch));
+        lastId = (Long) batch.get(batch.size() - 1)[1];
+      }
+    }
+    if (normalized > 0) {
+      log.info("Normalized the usernames of {} users", normalized);
+    }
+  }
+
+  private int updateBatch(List<Object[]> batch) {
+    try {
+      jdbcTemplate.batchUpdate(UPDATE_USER, batch);
+      return batch.size();
+    }
+    catch (DataIntegrityViolationException e) {
+      // some names collide, find them one by one
+      int updated = 0;
+      for (Object[] row : batch) {
+        try {
+          updated += jdbcTemplate.update(UPDATE_USER, row);
+        }
+        catch (DataIntegrityViolationException conflict) {
+          log.warn("Username of user {} collides with another user after normalization", row[1]);
+        }
+      }
+      return updated;
+    }
+  }
+}
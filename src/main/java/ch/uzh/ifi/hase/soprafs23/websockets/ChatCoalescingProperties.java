@@ -0,0 +1,38 @@
+package ch.uzh.ifi.hase.soprafs23.websockets;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Settings of the optional coalescing mode of the chat. If enabled, every frame
+ * sent to a client is a JSON array of one or more chat messages.
+ */
+@Component
+public class ChatCoalescingProperties {
+
+    private final boolean enabled;
+    private final long flushWindow;
+    private final int maxBatchBytes;
+
+    public ChatCoalescingProperties(@Value("${chat.coalescing.enabled:false}") boolean enabled,
+                                    @Value("${chat.coalescing.flush-window:5}") long flushWindow,
+                                    @Value("${chat.coalescing.max-batch-bytes:65536}") int maxBatchBytes) {
+        this.enabled = enabled;
+        this.flushWindow = flushWindow;
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // milliseconds a frame waits for more messages once the traffic is high
+    public long getFlushWindow() {
+        return flushWindow;
+    }
+
+    // UTF-8 bytes after which a frame takes no further messages
+    public int getMaxBatchBytes() {
+        return maxBatchBytes;
+    }
+}
@@ -1,24 +1,94 @@
 package ch.uzh.ifi.hase.soprafs23.websockets;
 
+import ch.uzh.ifi.hase.soprafs23.config.VirtualThreads;
+import ch.uzh.ifi.hase.soprafs23.service.SessionActivityTracker;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.socket.CloseStatus;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.util.UriComponentsBuilder;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
-public class ChatWebSocketHandler extends TextWebSocketHandler {
+public class ChatWebSocketHandler extends TextWebSocketHandler implements DisposableBean {
 
-    private final List<WebSocketSession> webSocketSessions = new ArrayList<>();
+    // clients connect with /chat?userId=<id>, every message they send counts as activity of that user
+    private static final String USER_ID_PARAMETER = "userId";
+
+    private final List<WebSocketSession> webSocketSessions = new CopyOnWriteArrayList<>();
+
+    private final SessionActivityTracker sessionActivityTracker;
+
+    // only used in coalescing mode or with virtual threads, see SessionMessageSender
+    private final ChatCoalescingProperties coalescing;
+    private final Map<String, SessionMessageSender> senders = new ConcurrentHashMap<>();
+    // only starts the delayed frames of coalescing mode, they are sent on flushExecutor
+    private final ScheduledExecutorService flushScheduler;
+    private final ExecutorService flushExecutor;
+    // with virtual threads every session sends on its own virtual thread, so a slow client never holds up the sender
+    private final ExecutorService sendExecutor;
+
+    public ChatWebSocketHandler(SessionActivityTracker sessionActivityTracker, ChatCoalescingProperties coalescing,
+                                boolean virtualThreads) {
+        this.sessionActivityTracker = sessionActivityTracker;
+        this.coalescing = coalescing;
+        this.flushScheduler = coalescing.isEnabled()
+                ? Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("chat-flush-"))
+                : null;
+        this.sendExecutor = virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("chat-send-") : null;
+        if (!coalescing.isEnabled() || sendExecutor != null) {
+            this.flushExecutor = sendExecutor;
+        }
+        else {
+            // a session has at most one send running, so this grows to at most one thread per delayed session
+            this.flushExecutor = Executors.newCachedThreadPool(new CustomizableThreadFactory("chat-flush-send-"));
+        }
+    }
+
+    private boolean usesSenders() {
+        return flushScheduler != null || sendExecutor != null;
+    }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
+        if (usesSenders()) {
+            senders.put(session.getId(), new SessionMessageSender(session, sendExecutor, flushScheduler,
+                    flushExecutor, coalescing.getFlushWindow(), coalescing.getMaxBatchBytes()));
+        }
         webSocketSessions.add(session);
+        if (session.getUri() != null) {
+            Long userId = parseUserId(UriComponentsBuilder.fromUri(session.getUri()).build()
+                    .getQueryParams().getFirst(USER_ID_PARAMETER));
+            if (userId != null) {
+                session.getAttributes().put(USER_ID_PARAMETER, userId);
+            }
+        }
     }
 
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
+        Object userId = session.getAttributes().get(USER_ID_PARAMETER);
+        if (userId != null) {
+            sessionActivityTracker.touch((Long) userId);
+        }
+        if (usesSenders()) {
+            String payload = message.getPayload();
+            for (WebSocketSession webSocketSession : webSocketSessions) {
+                SessionMessageSender sender = senders.get(webSocketSession.getId());
+                if (sender != null) {
+                    sender.send(payload);
+                }
+            }
+            return;
+        }
         for(WebSocketSession webSocketSession : webSocketSessions){
             webSocketSession.sendMessage(message);
         }
@@ -27,5 +97,38 @@ public class ChatWebSocketHandler extends TextWebSocketHandler {
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         webSocketSessions.remove(session);
+        senders.remove(session.getId());
+    }
+
+    // the parameter comes from the client, anything but a plain ASCII number is ignored
+    static Long parseUserId(String userId) {
+        if (userId == null || userId.isEmpty()) {
+            return null;
+        }
+        for (int i = 0; i < userId.length(); i++) {
+            if (userId.charAt(i) < '0' || userId.charAt(i) > '9') {
+                return null;
+            }
+        }
+        try {
+            return Long.valueOf(userId);
+        }
+        catch (NumberFormatException e) {
+            // too large for a long
+            return null;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdownNow();
+        }
+        if (sendExecutor != null) {
+            sendExecutor.shutdownNow();
+        }
+        if (flushExecutor != null && flushExecutor != sendExecutor) {
+            flushExecutor.shutdownNow();
+        }
     }
-}
\ No newline at end of file
+}
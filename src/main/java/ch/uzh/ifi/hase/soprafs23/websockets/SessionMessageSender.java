@@ -0,0 +1,187 @@
+package ch.uzh.ifi.hase.soprafs23.websockets;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Sends the chat messages of one session, one send at a time as the session
+ * requires. Messages that arrive while a send is running are queued and sent
+ * by the thread that is already sending, the others never wait for the socket.
+ *
+ * With a scheduler the messages are coalesced into batched frames: every frame
+ * is a JSON array of message strings (up to maxBatchBytes of UTF-8). The flush
+ * window adapts to the traffic: as long as frames carry a single message, a new
+ * message is sent right away. Once frames start to carry several messages, the
+ * next frame waits for flushWindowMillis to collect more. The scheduler only
+ * starts these delayed frames, they are sent on the flushExecutor. Without a
+ * scheduler every message is sent as it is.
+ *
+ * With an executor the other sends run on it (a virtual thread per send, see
+ * ChatWebSocketHandler) instead of on the thread that handed in the message.
+ */
+class SessionMessageSender {
+
+  private final Logger log = LoggerFactory.getLogger(SessionMessageSender.class);
+
+  private final WebSocketSession session;
+  // null: sends run on the calling thread
+  private final Executor executor;
+  // null: no coalescing
+  private final ScheduledExecutorService scheduler;
+  // sends the delayed frames, a send blocked on a slow client must not hold up the scheduler shared by all sessions
+  private final Executor flushExecutor;
+  private final long flushWindowMillis;
+  private final int maxBatchBytes;
+
+  private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+  // true while one thread sends the pending messages of this session, the others only enqueue
+  private final AtomicBoolean draining = new AtomicBoolean();
+  private volatile boolean busy;
+
+  SessionMessageSender(WebSocketSession session, Executor executor, ScheduledExecutorService scheduler,
+                       Executor flushExecutor, long flushWindowMillis, int maxBatchBytes) {
+    if (scheduler != null && flushExecutor == null) {
+      throw new IllegalArgumentException("Coalescing chat messages needs an executor for the delayed frames");
+    }
+    this.session = session;
+    this.executor = executor;
+    this.scheduler = scheduler;
+    this.flushExecutor = flushExecutor;
+    this.flushWindowMillis = flushWindowMillis;
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  void send(String payload) {
+    pending.add(payload);
+    if (draining.compareAndSet(false, true)) {
+      if (busy) {
+        scheduler.schedule(() -> startDrain(flushExecutor), flushWindowMillis, TimeUnit.MILLISECONDS);
+      }
+      else {
+        startDrain(executor);
+      }
+    }
+  }
+
+  private void startDrain(Executor target) {
+    if (target == null) {
+      drain();
+      return;
+    }
+    try {
+      target.execute(this::drain);
+    }
+    catch (RejectedExecutionException e) {
+      // shutting down
+      pending.clear();
+      draining.set(false);
+    }
+  }
+
+  private void drain() {
+    do {
+      try {
+        sendPendingFrames();
+      }
+      catch (IOException | RuntimeException e) {
+        pending.clear();
+        log.debug("Sending chat messages to session {} failed", session.getId(), e);
+      }
+      finally {
+        draining.set(false);
+      }
+      // a message may have been enqueued after the last poll but before draining was released
+    } while (!pending.isEmpty() && draining.compareAndSet(false, true));
+  }
+
+  private void sendPendingFrames() throws IOException {
+    if (scheduler == null) {
+      String payload;
+      while ((payload = pending.poll()) != null) {
+        if (session.isOpen()) {
+          session.sendMessage(new TextMessage(payload));
+        }
+      }
+      return;
+    }
+    StringBuilder frame = new StringBuilder();
+    while (true) {
+      frame.setLength(0);
+      frame.append('[');
+      int frameBytes = 2;
+      int messages = 0;
+      String payload;
+      // a frame always carries at least one message, even if that one is larger than maxBatchBytes
+      while ((messages == 0 || frameBytes < maxBatchBytes) && (payload = pending.poll()) != null) {
+        int start = frame.length();
+        if (messages > 0) {
+          frame.append(',');
+        }
+        appendJsonString(frame, payload);
+        frameBytes += utf8Length(frame, start);
+        messages++;
+      }
+      if (messages == 0) {
+        return;
+      }
+      frame.append(']');
+      if (session.isOpen()) {
+        session.sendMessage(new TextMessage(frame));
+      }
+      busy = messages > 1;
+    }
+  }
+
+  // bytes of the UTF-8 encoding of the chars from start on, a surrogate pair takes 4 bytes
+  private static int utf8Length(CharSequence chars, int start) {
+    int bytes = 0;
+    for (int i = start; i < chars.length(); i++) {
+      char c = chars.charAt(i);
+      bytes += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+    }
+    return bytes;
+  }
+
+  private static void appendJsonString(StringBuilder target, String value) {
+    target.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          target.append("\\\"");
+          break;
+        case '\\':
+          target.append("\\\\");
+          break;
+        case '\n':
+          target.append("\\n");
+          break;
+        case '\r':
+          target.append("\\r");
+          break;
+        case '\t':
+          target.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            target.append(String.format("\\u%04x", (int) c));
+          }
+          else {
+            target.append(c);
+          }
+      }
+    }
+    target.append('"');
+  }
+}
@@ -1,5 +1,7 @@
 package ch.uzh.ifi.hase.soprafs23.websockets;
 
+import ch.uzh.ifi.hase.soprafs23.service.SessionActivityTracker;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.web.socket.WebSocketHandler;
@@ -13,6 +15,18 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     private final static String CHAT_ENDPOINT = "/chat";
 
+    private final SessionActivityTracker sessionActivityTracker;
+    private final ChatCoalescingProperties chatCoalescingProperties;
+    private final boolean virtualThreads;
+
+    public WebSocketConfig(SessionActivityTracker sessionActivityTracker,
+                           ChatCoalescingProperties chatCoalescingProperties,
+                           @Value("${spring.threads.virtual.enabled:false}") boolean virtualThreads) {
+        this.sessionActivityTracker = sessionActivityTracker;
+        this.chatCoalescingProperties = chatCoalescingProperties;
+        this.virtualThreads = virtualThreads;
+    }
+
     @Override
     public void registerWebSocketHandlers(WebSocketHandlerRegistry webSocketHandlerRegistry) {
         webSocketHandlerRegistry.addHandler(getChatWebSocketHandler(), CHAT_ENDPOINT)
@@ -21,6 +35,6 @@ public class WebSocketConfig implements WebSocketConfigurer {
 
     @Bean
     public WebSocketHandler getChatWebSocketHandler(){
-        return new ChatWebSocketHandler();
+        return new ChatWebSocketHandler(sessionActivityTracker, chatCoalescingProperties, virtualThreads);
     }
 }
@@ -0,0 +1,90 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.UserGetDTO;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.http.HttpMessageConvertersAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;
+import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Size and encoding time of a GET /users body with 100k users as JSON, CBOR
+ * and Smile, using the object mappers of the application's message converters.
+ */
+@Tag("benchmark")
+public class BinaryContentNegotiationBenchmark {
+
+  private static final int USERS = 100_000;
+  private static final int WARMUP_ITERATIONS = 10;
+  private static final int ITERATIONS = 20;
+
+  @Test
+  public void userList_sizeAndTimePerFormat() throws Exception {
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(JacksonAutoConfiguration.class,
+        HttpMessageConvertersAutoConfiguration.class, BinaryContentNegotiationConfig.class)
+        .web(WebApplicationType.NONE).run()) {
+      Map<String, ObjectMapper> mappers = new LinkedHashMap<>();
+      mappers.put("application/json", context.getBean(MappingJackson2HttpMessageConverter.class).getObjectMapper());
+      mappers.put("application/cbor", context.getBean(MappingJackson2CborHttpMessageConverter.class).getObjectMapper());
+      mappers.put("application/x-jackson-smile",
+          context.getBean(MappingJackson2SmileHttpMessageConverter.class).getObjectMapper());
+      List<UserGetDTO> users = users();
+
+      for (Map.Entry<String, ObjectMapper> format : mappers.entrySet()) {
+        ObjectMapper mapper = format.getValue();
+        byte[] body = mapper.writeValueAsBytes(users);
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+          mapper.writeValueAsBytes(users);
+          mapper.readValue(body, new TypeReference<List<UserGetDTO>>() {});
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+          body = mapper.writeValueAsBytes(users);
+        }
+        double encodeMillis = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+        start = System.nanoTime();
+        List<UserGetDTO> decoded = null;
+        for (int i = 0; i < ITERATIONS; i++) {
+          decoded = mapper.readValue(body, new TypeReference<List<UserGetDTO>>() {});
+        }
+        double decodeMillis = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+
+        assertEquals(USERS, decoded.size());
+        assertEquals(users.get(USERS - 1).getBirthday(), decoded.get(USERS - 1).getBirthday());
+        System.out.printf("%-28s %,11d bytes, encode %6.1f ms, decode %6.1f ms%n",
+            format.getKey(), body.length, encodeMillis, decodeMillis);
+      }
+    }
+  }
+
+  private static List<UserGetDTO> users() {
+    List<UserGetDTO> users = new ArrayList<>(USERS);
+    for (int i = 0; i < USERS; i++) {
+      UserGetDTO user = new UserGetDTO();
+      user.setId((long) i + 1);
+      user.setUsername("user" + i);
+      user.setStatus(i % 3 == 0 ? UserStatus.ONLINE : UserStatus.OFFLINE);
+      user.setCreationDate(LocalDate.ofEpochDay(19_000 + i % 1000));
+      user.setBirthday(i % 4 == 0 ? null : LocalDate.ofEpochDay(i % 20_000));
+      users.add(user);
+    }
+    return users;
+  }
+}
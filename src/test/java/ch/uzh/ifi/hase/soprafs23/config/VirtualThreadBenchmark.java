@@ -0,0 +1,254 @@
+package ch.uzh.ifi.hase.soprafs23.config;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+/**
+ * Platform threads against the virtual thread mode (spring.threads.virtual.enabled),
+ * once for many concurrent requests that block, and once for chat broadcasts to
+ * many connected sessions while one client has stopped reading. Needs Java 21:
+ * ./gradlew benchmark -PbenchmarkJavaVersion=21 --tests '*VirtualThreadBenchmark'
+ */
+@Tag("benchmark")
+public class VirtualThreadBenchmark {
+
+  // requests
+  private static final int CLIENTS = 1_000;
+  private static final long BLOCK_MILLIS = 1_000;
+  private static final long WARMUP_MILLIS = 5_000;
+  private static final long MEASURE_MILLIS = 10_000;
+
+  // chat, measured for less than Tomcat's blocking send timeout of 20 seconds
+  private static final int SESSIONS = 1_000;
+  private static final int MESSAGES_PER_SECOND = 10;
+  private static final int MESSAGE_CHARS = 2_000;
+  private static final long CHAT_WARMUP_MILLIS = 2_000;
+  private static final long CHAT_MEASURE_MILLIS = 10_000;
+
+  // stands in for a slow database or remote call, e.g. a UserRepository query under load.
+  // Only a type-level @RequestMapping, so it is not picked up by the component scan of other tests
+  @RequestMapping
+  static class BlockingController {
+
+    @GetMapping("/blocking")
+    @ResponseBody
+    public String block() throws InterruptedException {
+      Thread.sleep(BLOCK_MILLIS);
+      return "done";
+    }
+  }
+
+  @Test
+  public void blockingRequests_virtualVersusPlatformThreads() throws Exception {
+    assumeTrue(VirtualThreads.isSupported(), "needs Java 21");
+    String platform = blockingRequests(false);
+    String virtual = blockingRequests(true);
+
+    System.out.printf("%d clients, requests blocking %d ms:%n", CLIENTS, BLOCK_MILLIS);
+    System.out.println("Platform threads: " + platform);
+    System.out.println("Virtual threads:  " + virtual);
+  }
+
+  private static String blockingRequests(boolean virtualThreads) throws Exception {
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class,
+        BlockingController.class).run(arguments("blocking", virtualThreads))) {
+      URI blocking = URI.create("http://localhost:" + port(context) + "/blocking");
+      HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(30)).build();
+      HttpRequest request = HttpRequest.newBuilder(blocking).timeout(Duration.ofSeconds(60)).build();
+
+      long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+      long end = warmupEnd + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+      ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+      AtomicLong failures = new AtomicLong();
+      // the same clients for both modes: one virtual thread each, sending the next request once answered
+      ExecutorService clients = VirtualThreads.newThreadPerTaskExecutor("blocking-client-");
+      for (int i = 0; i < CLIENTS; i++) {
+        clients.execute(() -> {
+          long start;
+          while ((start = System.nanoTime()) < end) {
+            try {
+              if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                failures.incrementAndGet();
+              }
+              else if (start >= warmupEnd) {
+                latencies.add(System.nanoTime() - start);
+              }
+            }
+            catch (Exception e) {
+              failures.incrementAndGet();
+            }
+          }
+        });
+      }
+      clients.shutdown();
+      assertTrue(clients.awaitTermination(2 * (WARMUP_MILLIS + MEASURE_MILLIS), TimeUnit.MILLISECONDS));
+
+      long[] sorted = sorted(latencies);
+      return String.format("%.0f requests/s, p50 %.0f ms, p99 %.0f ms, %d failed",
+          sorted.length * 1000.0 / MEASURE_MILLIS, percentile(sorted, 0.5), percentile(sorted, 0.99), failures.get());
+    }
+  }
+
+  @Test
+  public void chatWithAStalledClient_virtualVersusPlatformThreads() throws Exception {
+    assumeTrue(VirtualThreads.isSupported(), "needs Java 21");
+    String platform = chatWithAStalledClient(false);
+    String virtual = chatWithAStalledClient(true);
+
+    System.out.printf("%d sessions, %d messages/s of %d chars, one client not reading:%n",
+        SESSIONS, MESSAGES_PER_SECOND, MESSAGE_CHARS);
+    System.out.println("Platform threads: " + platform);
+    System.out.println("Virtual threads:  " + virtual);
+  }
+
+  private static String chatWithAStalledClient(boolean virtualThreads) throws Exception {
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+        .initializers(VirtualThreadBenchmark::smallSendBuffers)
+        .run(arguments("chat", virtualThreads));
+         // connected first, so every broadcast reaches it before the others
+         Socket stalled = connectWithoutReading(port(context))) {
+      String chat = "ws://localhost:" + port(context) + "/chat";
+      // send time of the first measured message
+      AtomicLong measuredFrom = new AtomicLong(Long.MAX_VALUE);
+      AtomicLong delivered = new AtomicLong();
+      ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+      TextWebSocketHandler receiver = new TextWebSocketHandler() {
+        @Override
+        protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+          String payload = message.getPayload();
+          long sent = Long.parseLong(payload.substring(0, payload.indexOf(' ')));
+          if (sent >= measuredFrom.get()) {
+            delivered.incrementAndGet();
+            latencies.add(System.nanoTime() - sent);
+          }
+        }
+      };
+      StandardWebSocketClient client = new StandardWebSocketClient();
+      List<WebSocketSession> sessions = new ArrayList<>(SESSIONS);
+      for (int i = 0; i < SESSIONS; i++) {
+        sessions.add(client.doHandshake(receiver, chat).get(10, TimeUnit.SECONDS));
+      }
+
+      // the first session sends at a fixed rate, a blocked send delays the following ones
+      WebSocketSession sender = sessions.get(0);
+      char[] padding = new char[MESSAGE_CHARS];
+      Arrays.fill(padding, 'x');
+      long interval = TimeUnit.SECONDS.toNanos(1) / MESSAGES_PER_SECOND;
+      long start = System.nanoTime();
+      long measureStart = start + TimeUnit.MILLISECONDS.toNanos(CHAT_WARMUP_MILLIS);
+      long end = measureStart + TimeUnit.MILLISECONDS.toNanos(CHAT_MEASURE_MILLIS);
+      measuredFrom.set(measureStart);
+      long expected = 0;
+      for (long due = start; due < end; due += interval) {
+        LockSupport.parkNanos(due - System.nanoTime());
+        long now = System.nanoTime();
+        String prefix = now + " ";
+        sender.sendMessage(new TextMessage(prefix + new String(padding, 0, MESSAGE_CHARS - prefix.length())));
+        if (now >= measureStart) {
+          expected += SESSIONS;
+        }
+      }
+      // the last messages may still be on their way
+      Thread.sleep(1_000);
+
+      long[] sorted = sorted(latencies);
+      String result = String.format("%.1f%% of the messages delivered, p50 %.0f ms, p99 %.0f ms",
+          delivered.get() * 100.0 / expected, percentile(sorted, 0.5), percentile(sorted, 0.99));
+      for (WebSocketSession session : sessions) {
+        session.close();
+      }
+      return result;
+    }
+  }
+
+  private static String[] arguments(String name, boolean virtualThreads) {
+    return new String[] {
+        "--server.port=0", "--management.server.port=0",
+        "--spring.datasource.url=jdbc:h2:mem:virtual-thread-benchmark-" + name + "-" + virtualThreads,
+        // the JCache manager is shared by all contexts in this JVM
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false",
+        "--user.admission.enabled=false",
+        "--server.tomcat.max-connections=" + (Math.max(CLIENTS, SESSIONS) + 100),
+        "--spring.threads.virtual.enabled=" + virtualThreads };
+  }
+
+  private static long[] sorted(ConcurrentLinkedQueue<Long> values) {
+    long[] sorted = values.stream().mapToLong(Long::longValue).toArray();
+    Arrays.sort(sorted);
+    return sorted;
+  }
+
+  // milliseconds
+  private static double percentile(long[] sortedNanos, double fraction) {
+    return sortedNanos.length == 0 ? 0 : sortedNanos[(int) (sortedNanos.length * fraction)] / 1e6;
+  }
+
+  // a fixed send buffer instead of the kernel's autotuning (up to megabytes), so the stalled client blocks
+  // the writes to it within the warmup
+  private static void smallSendBuffers(ConfigurableApplicationContext context) {
+    WebServerFactoryCustomizer<TomcatServletWebServerFactory> customizer =
+        factory -> factory.addConnectorCustomizers(connector -> connector.setProperty("socket.txBufSize", "8192"));
+    context.getBeanFactory().registerSingleton("smallSendBuffers", customizer);
+  }
+
+  private static int port(ConfigurableApplicationContext context) {
+    return ((WebServerApplicationContext) context).getWebServer().getPort();
+  }
+
+  // a WebSocket client that completes the handshake and then never reads, with a small receive window
+  private static Socket connectWithoutReading(int port) throws Exception {
+    Socket socket = new Socket();
+    socket.setReceiveBufferSize(4096);
+    socket.connect(new InetSocketAddress("localhost", port));
+    OutputStream out = socket.getOutputStream();
+    out.write(("GET /chat HTTP/1.1\r\nHost: localhost:" + port + "\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\nSec-WebSocket-Version: 13\r\n\r\n")
+        .getBytes(StandardCharsets.US_ASCII));
+    out.flush();
+    InputStream in = socket.getInputStream();
+    StringBuilder head = new StringBuilder();
+    while (head.indexOf("\r\n\r\n") < 0) {
+      int b = in.read();
+      assertNotEquals(-1, b);
+      head.append((char) b);
+    }
+    assertTrue(head.toString().startsWith("HTTP/1.1 101"), head.toString());
+    return socket;
+  }
+}
@@ -0,0 +1,66 @@
+package ch.uzh.ifi.hase.soprafs23.controller;
+
+import ch.uzh.ifi.hase.soprafs23.rest.dto.ProfileSummaryDTO;
+import ch.uzh.ifi.hase.soprafs23.service.ProfilingService;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.BDDMockito.given;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(value = ProfilingController.class, properties = "admin.token=secret")
+public class ProfilingControllerTest {
+
+  @Autowired
+  private MockMvc mockMvc;
+
+  @MockBean
+  private ProfilingService profilingService;
+
+  @Test
+  public void recordProfile_wrongToken_forbidden() throws Exception {
+    mockMvc.perform(post("/admin/profiles").header("X-Admin-Token", "wrong"))
+        .andExpect(status().isForbidden());
+    mockMvc.perform(post("/admin/profiles"))
+        .andExpect(status().isForbidden());
+
+    Mockito.verifyNoInteractions(profilingService);
+  }
+
+  @Test
+  public void recordProfile_summary_returnsSummaryAndDeletesRecording() throws Exception {
+    Path recordingFile = Files.createTempFile("profile-test-", ".jfr");
+    ProfileSummaryDTO summary = new ProfileSummaryDTO();
+    summary.setExecutionSamples(42);
+    given(profilingService.record(5000)).willReturn(CompletableFuture.completedFuture(recordingFile));
+    given(profilingService.summarize(recordingFile, 5000)).willReturn(summary);
+
+    MvcResult result = mockMvc.perform(post("/admin/profiles?seconds=5&summary=true")
+            .header("X-Admin-Token", "secret"))
+        .andExpect(request().asyncStarted())
+        .andReturn();
+    // admin.profiling.max-duration (60 s) plus the margin, not the container's default of 30 s
+    assertEquals(90_000, result.getRequest().getAsyncContext().getTimeout());
+    mockMvc.perform(asyncDispatch(result))
+        .andExpect(status().isOk())
+        .andExpect(jsonPath("$.executionSamples", is(42)));
+
+    Mockito.verify(profilingService).deleteRecording(recordingFile);
+    Files.deleteIfExists(recordingFile);
+  }
+}
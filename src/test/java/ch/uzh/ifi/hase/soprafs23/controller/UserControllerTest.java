@@ -2,31 +2,42 @@ package ch.uzh.ifi.hase.soprafs23.controller;
 
 import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.exceptions.InvalidCredentialsException;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.UserGetDTO;
 import ch.uzh.ifi.hase.soprafs23.rest.dto.UserPostDTO;
 import ch.uzh.ifi.hase.soprafs23.rest.dto.UserPutDTO;
+import ch.uzh.ifi.hase.soprafs23.service.UserListResponseCache;
 import ch.uzh.ifi.hase.soprafs23.service.UserService;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDate;
 import java.util.Collections;
 import java.util.List;
 
 import static org.hamcrest.Matchers.hasSize;
 import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.BDDMockito.given;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
@@ -45,6 +56,9 @@ public class UserControllerTest {
   @MockBean
   private UserService userService;
 
+  @MockBean
+  private UserListResponseCache userListResponseCache;
+
   // Test request to GET all users
   @Test
   public void givenUsers_whenGetUsers_thenReturnJsonArray() throws Exception {
@@ -77,6 +91,94 @@ public class UserControllerTest {
             .andExpect((jsonPath("$.birthday", is(user.getBirthday().toString()))));
   }
 
+    // Test request to GET all users without a prepared list
+    @Test
+    public void givenUsers_whenGetAllUsers_thenReturnJsonArray() throws Exception {
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("firstname@lastname");
+        user.setCreationDate();
+        user.setStatus(UserStatus.OFFLINE);
+
+        given(userService.getUsers()).willReturn(Collections.singletonList(user));
+
+        mockMvc.perform(get("/users").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].username", is(user.getUsername())));
+    }
+
+    // Test request to GET all users served from the pre-serialized list
+    @Test
+    public void preparedList_whenGetAllUsers_thenReturnPreparedBytes() throws Exception {
+        byte[] json = "[{\"id\":1,\"username\":\"cached\"}]".getBytes(StandardCharsets.UTF_8);
+        given(userListResponseCache.getSnapshot()).willReturn(UserListResponseCache.Snapshot.of(json));
+
+        mockMvc.perform(get("/users").accept(MediaType.APPLICATION_JSON))
+                .andExpect(status().isOk())
+                .andExpect(content().bytes(json));
+
+        mockMvc.perform(get("/users").header(HttpHeaders.ACCEPT_ENCODING, "gzip"))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CONTENT_ENCODING, "gzip"));
+
+        Mockito.verify(userService, Mockito.never()).getUsers();
+    }
+
+    // Test request to GET all users with an Accept-Encoding that refuses gzip
+    @Test
+    public void preparedList_whenGzipRefused_thenReturnUncompressedBytes() throws Exception {
+        byte[] json = "[{\"id\":1,\"username\":\"cached\"}]".getBytes(StandardCharsets.UTF_8);
+        given(userListResponseCache.getSnapshot()).willReturn(UserListResponseCache.Snapshot.of(json));
+
+        mockMvc.perform(get("/users").header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0, identity"))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_ENCODING))
+                .andExpect(content().bytes(json));
+    }
+
+    @Test
+    public void acceptsGzip_parsesCodingsAndQualities() {
+        assertTrue(UserController.acceptsGzip("gzip"));
+        assertTrue(UserController.acceptsGzip("deflate, x-gzip"));
+        assertTrue(UserController.acceptsGzip("br;q=1.0, GZIP;q=0.5"));
+        assertTrue(UserController.acceptsGzip("*"));
+        assertFalse(UserController.acceptsGzip(null));
+        assertFalse(UserController.acceptsGzip("deflate, br"));
+        assertFalse(UserController.acceptsGzip("gzip;q=0"));
+        assertFalse(UserController.acceptsGzip("gzip; q=0.000, *"));
+        assertFalse(UserController.acceptsGzip("*;q=0"));
+        assertFalse(UserController.acceptsGzip("gzip;q=invalid"));
+        assertFalse(UserController.acceptsGzip("gzipped"));
+    }
+
+    // Test request to GET a user encoded as CBOR
+    @Test
+    public void givenUser_whenGetUserAsCbor_thenReturnCbor() throws Exception {
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("firstname@lastname");
+        user.setCreationDate();
+        user.setStatus(UserStatus.OFFLINE);
+        user.setBirthday(LocalDate.parse("2000-07-06"));
+
+        given(userService.getUserProfile(1)).willReturn(user);
+
+        MockHttpServletRequestBuilder getRequest = get("/users/1").accept(MediaType.APPLICATION_CBOR);
+
+        byte[] body = mockMvc.perform(getRequest)
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR))
+                .andReturn().getResponse().getContentAsByteArray();
+
+        ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+        cborMapper.registerModule(new JavaTimeModule());
+        UserGetDTO userGetDTO = cborMapper.readValue(body, UserGetDTO.class);
+        assertEquals(user.getId(), userGetDTO.getId());
+        assertEquals(user.getUsername(), userGetDTO.getUsername());
+        assertEquals(user.getBirthday(), userGetDTO.getBirthday());
+    }
+
     // Test request to GET all users
     @Test
     public void notExistingUser_whenGetUsers_notFoundRaised() throws Exception {
@@ -155,17 +257,6 @@ public class UserControllerTest {
     @Test
     public void editUser_validInput_userEdited() throws Exception {
         // given
-        User user = new User();
-        user.setId(1L);
-        user.setPassword("password123");
-        user.setUsername("felixNew");
-        user.setCreationDate();
-        user.setToken("1");
-        user.setStatus(UserStatus.ONLINE);
-        user.setBirthday(LocalDate.parse("2000-07-06"));
-
-        given(userService.putChanges(Mockito.anyLong(), Mockito.any())).willReturn(user);
-
         UserPutDTO userPutDTO = new UserPutDTO();
         userPutDTO.setUsername("felixNew");
         userPutDTO.setBirthday(LocalDate.parse("2000-07-06"));
@@ -189,7 +280,8 @@ public class UserControllerTest {
         userPutDTO.setUsername("newfirstname@lastname");
         userPutDTO.setBirthday(LocalDate.parse("2000-07-06"));
 
-        given(userService.putChanges(Mockito.anyLong(), Mockito.any())).willThrow(new ResponseStatusException(HttpStatus.NOT_FOUND));
+        Mockito.doThrow(new ResponseStatusException(HttpStatus.NOT_FOUND))
+                .when(userService).putChanges(Mockito.anyLong(), Mockito.any());
 
         // when/then -> do the request + validate the result
         MockHttpServletRequestBuilder putRequest = put("/users/1")
@@ -202,6 +294,60 @@ public class UserControllerTest {
     }
 
 
+    // Test login with wrong credentials, the error body is the preallocated one
+    @Test
+    public void loginUser_wrongCredentials_badRequestRaised() throws Exception {
+        UserPostDTO userPostDTO = new UserPostDTO();
+        userPostDTO.setPassword("wrongPassword");
+        userPostDTO.setUsername("testUsername");
+
+        given(userService.checkIfUserExistsReverse(Mockito.any())).willThrow(new InvalidCredentialsException());
+
+        MockHttpServletRequestBuilder postRequest = post("/user-logins")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(userPostDTO));
+
+        mockMvc.perform(postRequest)
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.status", is(400)))
+                .andExpect(jsonPath("$.message",
+                        is("Sorry, your username or password was incorrect. Please double-check your credentials")));
+    }
+
+    // Test batched logout of several users
+    @Test
+    public void logoutUsers_validInput_usersLoggedOut() throws Exception {
+        MockHttpServletRequestBuilder putRequest = put("/user-logouts")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(asJsonString(List.of(1L, 2L, 3L)));
+
+        mockMvc.perform(putRequest)
+                .andExpect(status().isOk());
+
+        Mockito.verify(userService).setOffline(List.of(1L, 2L, 3L));
+    }
+
+    @Test
+    public void getUpcomingBirthdays_validRange_returnsUsers() throws Exception {
+        User user = new User();
+        user.setId(1L);
+        user.setUsername("birthdayUser");
+        user.setStatus(UserStatus.OFFLINE);
+        user.setBirthday(LocalDate.parse("2000-01-02"));
+        given(userService.getUpcomingBirthdays(LocalDate.parse("2022-12-30"), 4)).willReturn(List.of(user));
+
+        mockMvc.perform(get("/users/birthdays?from=2022-12-30&days=4"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$", hasSize(1)))
+                .andExpect(jsonPath("$[0].username", is("birthdayUser")));
+    }
+
+    @Test
+    public void getUpcomingBirthdays_tooManyDays_badRequest() throws Exception {
+        mockMvc.perform(get("/users/birthdays?days=400"))
+                .andExpect(status().isBadRequest());
+    }
+
 
   /**
    * Helper Method to convert userPostDTO into a JSON string such that the input
@@ -0,0 +1,154 @@
+package ch.uzh.ifi.hase.soprafs23.exceptions;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import ch.uzh.ifi.hase.soprafs23.service.UserService;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Cost of the frequent error paths with the stackless domain exceptions and
+ * preallocated bodies, against the previous approach: a ResponseStatusException
+ * with a formatted message and a stack trace, rendered by Spring's error page.
+ * Measured once for throwing and catching the exception alone and once for a
+ * whole GET /users/{id} request for an unknown user.
+ */
+@Tag("benchmark")
+public class DomainExceptionBenchmark {
+
+  // roughly the depth of a service call below the Tomcat and Spring MVC frames
+  private static final int STACK_DEPTH = 100;
+  private static final long MEASURE_MILLIS = 5_000;
+  private static final int ROUNDS = 3;
+
+  // GET /users/{id} with the previous error handling: the same lookup, then the exception it used to throw.
+  // Only a type-level @RequestMapping, so it is not picked up by the component scan of other tests
+  @RequestMapping
+  static class PreviousErrorController {
+
+    private final UserService userService;
+
+    PreviousErrorController(UserService userService) {
+      this.userService = userService;
+    }
+
+    @GetMapping("/users-previous/{userId}")
+    public void getUserProfile(@PathVariable Long userId) {
+      try {
+        userService.getUserProfile(userId);
+      }
+      catch (UserNotFoundException e) {
+        String errorMessage = "user with " + userId + " was not found";
+        throw new ResponseStatusException(HttpStatus.NOT_FOUND, errorMessage);
+      }
+    }
+  }
+
+  @Test
+  public void throwAndCatch_domainVersusResponseStatusException() {
+    LongFunction<RuntimeException> previous = id -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+        String.format("user with %d was not found", id));
+    LongFunction<RuntimeException> domain = id -> new UserNotFoundException();
+
+    // warmup
+    throwAndCatchFor(previous, 1_000);
+    throwAndCatchFor(domain, 1_000);
+    double previousNanos = throwAndCatchFor(previous, MEASURE_MILLIS);
+    double domainNanos = throwAndCatchFor(domain, MEASURE_MILLIS);
+
+    System.out.printf("Throw and catch %d frames deep: ResponseStatusException %.0f ns, domain exception %.0f ns "
+        + "(%.1fx)%n", STACK_DEPTH, previousNanos, domainNanos, previousNanos / domainNanos);
+  }
+
+  // nanoseconds per exception
+  private static double throwAndCatchFor(LongFunction<RuntimeException> exception, long millis) {
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    long start = System.nanoTime();
+    long count = 0;
+    long statuses = 0;
+    while (System.nanoTime() < end) {
+      for (int i = 0; i < 1000; i++) {
+        try {
+          throwAt(STACK_DEPTH, exception, count++);
+        }
+        catch (ResponseStatusException e) {
+          statuses += e.getStatus().value();
+        }
+      }
+    }
+    assertEquals(count * HttpStatus.NOT_FOUND.value(), statuses);
+    return (double) (System.nanoTime() - start) / count;
+  }
+
+  private static void throwAt(int depth, LongFunction<RuntimeException> exception, long id) {
+    if (depth == 0) {
+      throw exception.apply(id);
+    }
+    throwAt(depth - 1, exception, id);
+  }
+
+  @Test
+  public void unknownUser_domainVersusResponseStatusException() throws IOException {
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0",
+        "--spring.datasource.url=jdbc:h2:mem:error-path-benchmark",
+        // the JCache manager is shared by all contexts in this JVM
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false" };
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class,
+        PreviousErrorController.class).run(arguments)) {
+      int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+      String previousUrl = "http://localhost:" + port + "/users-previous/";
+      String domainUrl = "http://localhost:" + port + "/users/";
+
+      // warmup, then alternating rounds so both see the same conditions
+      requestFor(previousUrl, 3_000);
+      requestFor(domainUrl, 3_000);
+      double previous = 0;
+      double domain = 0;
+      for (int round = 0; round < ROUNDS; round++) {
+        previous += requestFor(previousUrl, MEASURE_MILLIS) / ROUNDS;
+        domain += requestFor(domainUrl, MEASURE_MILLIS) / ROUNDS;
+      }
+
+      System.out.printf("GET of an unknown user: ResponseStatusException %.0f requests/s, domain exception %.0f "
+          + "requests/s (%.2fx)%n", previous, domain, domain / previous);
+    }
+  }
+
+  // requests per second of a single client on a kept-alive connection
+  private static double requestFor(String baseUrl, long millis) throws IOException {
+    long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    long start = System.nanoTime();
+    long requests = 0;
+    byte[] buffer = new byte[4096];
+    while (System.nanoTime() < end) {
+      HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + (1_000_000 + requests)).openConnection();
+      assertEquals(HttpStatus.NOT_FOUND.value(), connection.getResponseCode());
+      // reading the body completely lets the connection be reused
+      try (InputStream body = connection.getErrorStream()) {
+        while (body.read(buffer) != -1) {
+          // discard
+        }
+      }
+      requests++;
+    }
+    return requests * 1e9 / (System.nanoTime() - start);
+  }
+}
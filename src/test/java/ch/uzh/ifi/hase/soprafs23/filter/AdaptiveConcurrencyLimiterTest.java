@@ -0,0 +1,89 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import ch.uzh.ifi.hase.soprafs23.filter.AdaptiveConcurrencyLimiter.Priority;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+  private static final long FAST = TimeUnit.MILLISECONDS.toNanos(5);
+  private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+  private static int acquireAll(AdaptiveConcurrencyLimiter limiter, Priority priority) {
+    int acquired = 0;
+    while (limiter.tryAcquire(priority)) {
+      acquired++;
+    }
+    return acquired;
+  }
+
+  @Test
+  public void tryAcquire_lowerPrioritiesGetShareOfLimit() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 10, 1, 100);
+
+    assertEquals(7, acquireAll(limiter, Priority.CREATE));
+    // reads and logouts still get in after creates are shed
+    assertEquals(2, acquireAll(limiter, Priority.READ));
+    assertEquals(1, acquireAll(limiter, Priority.CRITICAL));
+    assertEquals(10, limiter.getInFlight());
+  }
+
+  @Test
+  public void release_fastResponsesUnderLoad_limitGrows() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 10, 1, 100);
+
+    for (int round = 0; round < 50; round++) {
+      int acquired = acquireAll(limiter, Priority.CRITICAL);
+      for (int i = 0; i < acquired; i++) {
+        limiter.release(0, FAST, false);
+      }
+    }
+
+    assertTrue(limiter.getLimit() > 10);
+    assertEquals(0, limiter.getInFlight());
+  }
+
+  @Test
+  public void release_slowResponses_limitShrinksToMinimum() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 4, 100);
+    assertTrue(limiter.tryAcquire(Priority.READ));
+    limiter.release(0, FAST, false);
+
+    for (int i = 0; i < 2_000; i++) {
+      assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+      limiter.release(0, SLOW, false);
+    }
+
+    assertEquals(4, limiter.getLimit());
+  }
+
+  @Test
+  public void release_overloadedResponses_limitShrinks() {
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(1, 20, 4, 100);
+
+    for (int i = 0; i < 40; i++) {
+      assertTrue(limiter.tryAcquire(Priority.CRITICAL));
+      limiter.release(0, FAST, true);
+    }
+
+    assertTrue(limiter.getLimit() < 20);
+  }
+
+  @Test
+  public void release_slowRouteAtItsUsualLatency_limitStillGrows() {
+    // route 0 answers in FAST, route 1 (e.g. logins hashing a password) always takes SLOW
+    AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(2, 10, 1, 100);
+
+    for (int round = 0; round < 50; round++) {
+      int acquired = acquireAll(limiter, Priority.CRITICAL);
+      for (int i = 0; i < acquired; i++) {
+        limiter.release(i % 2, i % 2 == 0 ? FAST : SLOW, false);
+      }
+    }
+
+    assertTrue(limiter.getLimit() > 10);
+  }
+}
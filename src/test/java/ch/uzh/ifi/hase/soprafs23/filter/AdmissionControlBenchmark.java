@@ -0,0 +1,172 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Load test of GET /users (list cache and second-level cache off, so every
+ * request reads and serializes all users) with and without admission control.
+ * The capacity is measured first without admission control, with a few clients
+ * in a closed loop. Then, in both setups, requests arrive at twice that rate
+ * whether or not earlier ones have been answered. Goodput counts 200 responses
+ * per second, latencies are measured from the time a request was due, clients
+ * give up after 5 seconds.
+ */
+@Tag("benchmark")
+public class AdmissionControlBenchmark {
+
+  private static final int USERS = 2_000;
+  private static final int CAPACITY_CLIENTS = 4;
+  private static final Duration CLIENT_TIMEOUT = Duration.ofSeconds(5);
+  private static final long CAPACITY_MILLIS = 5_000;
+  private static final int CAPACITY_ROUNDS = 3;
+  private static final long OVERLOAD_MILLIS = 30_000;
+
+  @Test
+  public void twiceTheCapacity_limiterOnVersusOff() throws Exception {
+    // the first context only warms up the JVM, so the capacity is measured on compiled code
+    run(false, null);
+    double[] capacity = new double[1];
+    String off = run(false, capacity);
+    String on = run(true, capacity);
+
+    System.out.printf("Capacity %.0f requests/s, at %.0f requests/s:%n", capacity[0], 2 * capacity[0]);
+    System.out.println("Admission control off: " + off);
+    System.out.println("Admission control on:  " + on);
+  }
+
+  // measures the capacity if it is not known yet, the closed loop also warms up the new context.
+  // Without a capacity array only the closed loop runs
+  private static String run(boolean admissionControl, double[] capacity) throws Exception {
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0",
+        "--spring.datasource.url=jdbc:h2:mem:admission-benchmark-" + admissionControl,
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false",
+        "--user.list-cache.enabled=false",
+        "--user.admission.enabled=" + admissionControl };
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(arguments)) {
+      insertUsers(context.getBean(JdbcTemplate.class));
+      URI users = URI.create("http://localhost:" + ((WebServerApplicationContext) context).getWebServer().getPort()
+          + "/users");
+      HttpClient client = HttpClient.newBuilder().connectTimeout(CLIENT_TIMEOUT).build();
+
+      double measured = measureCapacity(client, users);
+      if (capacity == null) {
+        return null;
+      }
+      if (capacity[0] == 0) {
+        capacity[0] = measured;
+      }
+      return overload(client, users, 2 * capacity[0]);
+    }
+  }
+
+  private static void insertUsers(JdbcTemplate jdbcTemplate) {
+    List<Object[]> rows = new ArrayList<>();
+    for (int i = 1; i <= USERS; i++) {
+      rows.add(new Object[] { (long) i, "password", "loadUser" + i, "loaduser" + i, "token-" + i,
+          LocalDate.ofEpochDay(19_000 + i % 1000) });
+    }
+    jdbcTemplate.batchUpdate("insert into user (id, password, username, username_normalized, token, status, "
+        + "creation_date) values (?, ?, ?, ?, ?, 1, ?)", rows);
+  }
+
+  // 200 responses per second of a few clients that send the next request once the previous one is answered
+  private static double measureCapacity(HttpClient client, URI users) throws Exception {
+    HttpRequest request = HttpRequest.newBuilder(users).timeout(CLIENT_TIMEOUT).build();
+    for (int i = 0; i < CAPACITY_ROUNDS; i++) {
+      long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CAPACITY_MILLIS);
+      AtomicLong responses = new AtomicLong();
+      List<Thread> clients = new ArrayList<>();
+      for (int c = 0; c < CAPACITY_CLIENTS; c++) {
+        Thread thread = new Thread(() -> {
+          try {
+            while (System.nanoTime() < end) {
+              int status = client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+              // the limiter may still shed while it finds its limit
+              assertTrue(status == 200 || status == 503);
+              if (status == 200) {
+                responses.incrementAndGet();
+              }
+            }
+          }
+          catch (Exception e) {
+            throw new IllegalStateException(e);
+          }
+        });
+        thread.start();
+        clients.add(thread);
+      }
+      for (Thread thread : clients) {
+        thread.join();
+      }
+      // the earlier rounds are warmup
+      if (i == CAPACITY_ROUNDS - 1) {
+        return responses.get() * 1000.0 / CAPACITY_MILLIS;
+      }
+    }
+    throw new IllegalStateException();
+  }
+
+  // an open loop: requests are sent at the given rate, however long the earlier ones take
+  private static String overload(HttpClient client, URI users, double requestsPerSecond) {
+    HttpRequest request = HttpRequest.newBuilder(users).timeout(CLIENT_TIMEOUT).build();
+    long interval = (long) (1e9 / requestsPerSecond);
+    long start = System.nanoTime();
+    long count = (long) (requestsPerSecond * OVERLOAD_MILLIS / 1000);
+    ConcurrentLinkedQueue<Long> okLatencies = new ConcurrentLinkedQueue<>();
+    AtomicLong shed = new AtomicLong();
+    AtomicLong failed = new AtomicLong();
+    List<CompletableFuture<?>> responses = new ArrayList<>();
+    for (long i = 0; i < count; i++) {
+      long due = start + i * interval;
+      LockSupport.parkNanos(due - System.nanoTime());
+      responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding()).handle((response, error) -> {
+        if (error != null) {
+          failed.incrementAndGet();
+        }
+        else if (response.statusCode() == 200) {
+          okLatencies.add(System.nanoTime() - due);
+        }
+        else if (response.statusCode() == 503) {
+          shed.incrementAndGet();
+        }
+        else {
+          failed.incrementAndGet();
+        }
+        return null;
+      }));
+    }
+    CompletableFuture.allOf(responses.toArray(new CompletableFuture[0])).join();
+
+    long[] latencies = okLatencies.stream().mapToLong(Long::longValue).toArray();
+    Arrays.sort(latencies);
+    double p50 = latencies.length == 0 ? 0 : latencies[latencies.length / 2] / 1e6;
+    double p99 = latencies.length == 0 ? 0 : latencies[(int) (latencies.length * 0.99)] / 1e6;
+    return String.format("goodput %.0f requests/s, p50 %.0f ms, p99 %.0f ms, %d shed with 503, %d timed out or failed",
+        latencies.length * 1000.0 / OVERLOAD_MILLIS, p50, p99, shed.get(), failed.get());
+  }
+}
@@ -0,0 +1,114 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockFilterChain;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LoginRateLimitFilterTest {
+
+  // plenty of tokens per IP, 2 attempts per username and one more per hour
+  private final LoginRateLimitFilter filter = new LoginRateLimitFilter(true, 100, 1, 2, 1 / 3600.0, 64, 60_000);
+
+  // a request without Content-Length, as sent with chunked transfer encoding
+  private static MockHttpServletRequest chunkedLogin(String remoteAddr, String body) {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", "/user-logins") {
+      @Override
+      public int getContentLength() {
+        return -1;
+      }
+
+      @Override
+      public long getContentLengthLong() {
+        return -1;
+      }
+    };
+    request.setRemoteAddr(remoteAddr);
+    request.setContent(body.getBytes(StandardCharsets.UTF_8));
+    return request;
+  }
+
+  private static MockHttpServletRequest login(String remoteAddr, String username) {
+    MockHttpServletRequest request = new MockHttpServletRequest("POST", "/user-logins");
+    request.setRemoteAddr(remoteAddr);
+    request.setContent(("{\"username\":\"" + username + "\",\"password\":\"pw\"}").getBytes(StandardCharsets.UTF_8));
+    return request;
+  }
+
+  private MockHttpServletResponse send(HttpServletRequest request) throws Exception {
+    MockHttpServletResponse response = new MockHttpServletResponse();
+    filter.doFilter(request, response, new MockFilterChain());
+    return response;
+  }
+
+  @Test
+  public void chunkedBody_usernameStillLimited() throws Exception {
+    String body = "{\"username\":\"alice\",\"password\":\"pw\"}";
+
+    assertEquals(200, send(chunkedLogin("10.0.0.1", body)).getStatus());
+    assertEquals(200, send(chunkedLogin("10.0.0.2", body)).getStatus());
+    assertEquals(429, send(chunkedLogin("10.0.0.3", body)).getStatus());
+  }
+
+  @Test
+  public void usernameSpellings_shareOneBucket() throws Exception {
+    assertEquals(200, send(login("10.0.0.1", "alice")).getStatus());
+    assertEquals(200, send(login("10.0.0.2", "ALICE")).getStatus());
+    // fullwidth letters normalize to "alice" as well
+    assertEquals(429, send(login("10.0.0.3", "ａｌｉｃｅ")).getStatus());
+  }
+
+  @Test
+  public void oversizedBody_rejected() throws Exception {
+    String padding = "x".repeat(LoginRateLimitFilter.MAX_BODY);
+    String body = "{\"password\":\"" + padding + "\",\"username\":\"alice\"}";
+
+    assertEquals(413, send(chunkedLogin("10.0.0.1", body)).getStatus());
+    MockHttpServletRequest declared = login("10.0.0.1", "alice");
+    declared.setContent(body.getBytes(StandardCharsets.UTF_8));
+    assertEquals(413, send(declared).getStatus());
+  }
+
+  @Test
+  public void cachedBody_readableWithReadListener() throws Exception {
+    byte[] body = "{\"username\":\"alice\"}".getBytes(StandardCharsets.UTF_8);
+    CachedBodyHttpServletRequest request = new CachedBodyHttpServletRequest(new MockHttpServletRequest(), body);
+    ServletInputStream input = request.getInputStream();
+    ByteArrayOutputStream read = new ByteArrayOutputStream();
+    AtomicBoolean allDataRead = new AtomicBoolean();
+
+    input.setReadListener(new ReadListener() {
+      @Override
+      public void onDataAvailable() throws IOException {
+        byte[] buffer = new byte[4];
+        int length;
+        while (input.isReady() && (length = input.read(buffer)) != -1) {
+          read.write(buffer, 0, length);
+        }
+      }
+
+      @Override
+      public void onAllDataRead() {
+        allDataRead.set(true);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        fail(t);
+      }
+    });
+
+    assertArrayEquals(body, read.toByteArray());
+    assertTrue(allDataRead.get());
+  }
+}
@@ -0,0 +1,58 @@
+package ch.uzh.ifi.hase.soprafs23.filter;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TokenBucketLimiterTest {
+
+  private long nanos;
+
+  @BeforeEach
+  public void setup() {
+    nanos = 0;
+  }
+
+  @Test
+  public void tryAcquire_burstAboveCapacity_rejected() {
+    // 3 requests burst, one new token per second
+    TokenBucketLimiter limiter = new TokenBucketLimiter(3, 1, 16, 60_000, () -> nanos);
+
+    assertEquals(0, limiter.tryAcquire("alice"));
+    assertEquals(0, limiter.tryAcquire("alice"));
+    assertEquals(0, limiter.tryAcquire("alice"));
+
+    long waitNanos = limiter.tryAcquire("alice");
+    assertTrue(waitNanos > 0);
+    assertTrue(waitNanos <= TimeUnit.SECONDS.toNanos(1));
+
+    // other keys have their own bucket
+    assertEquals(0, limiter.tryAcquire("bob"));
+  }
+
+  @Test
+  public void tryAcquire_afterRefill_permitted() {
+    TokenBucketLimiter limiter = new TokenBucketLimiter(1, 2, 16, 60_000, () -> nanos);
+
+    assertEquals(0, limiter.tryAcquire("alice"));
+    assertTrue(limiter.tryAcquire("alice") > 0);
+
+    nanos += TimeUnit.MILLISECONDS.toNanos(500);
+    assertEquals(0, limiter.tryAcquire("alice"));
+  }
+
+  @Test
+  public void tryAcquire_moreKeysThanSlots_memoryBounded() {
+    TokenBucketLimiter limiter = new TokenBucketLimiter(1, 1, 4, 60_000, () -> nanos);
+
+    // far more keys than slots: old buckets are replaced instead of growing the table
+    for (int i = 0; i < 10_000; i++) {
+      assertEquals(0, limiter.tryAcquire("user" + i));
+    }
+    // the most recent key is still limited
+    assertTrue(limiter.tryAcquire("user9999") > 0);
+  }
+}
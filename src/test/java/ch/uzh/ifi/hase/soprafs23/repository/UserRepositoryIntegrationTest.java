@@ -7,8 +7,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
 import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
 
+import javax.persistence.PersistenceException;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 @DataJpaTest
 public class UserRepositoryIntegrationTest {
@@ -41,4 +44,36 @@ public class UserRepositoryIntegrationTest {
     assertEquals(found.getToken(), user.getToken());
     assertEquals(found.getStatus(), user.getStatus());
   }
+
+  private static User user(String username, String token) {
+    User user = new User();
+    user.setPassword("password123");
+    user.setUsername(username);
+    user.setStatus(UserStatus.OFFLINE);
+    user.setToken(token);
+    user.setCreationDate();
+    return user;
+  }
+
+  @Test
+  public void findByUsernameNormalized_differentCaseAndWidth_success() {
+    entityManager.persist(user("Alice", "1"));
+    entityManager.flush();
+
+    User found = userRepository.findByUsernameNormalized(User.normalizeUsername("ＡＬＩＣＥ"));
+
+    assertNotNull(found);
+    assertEquals("Alice", found.getUsername());
+  }
+
+  @Test
+  public void persist_usernameDiffersOnlyInCase_rejected() {
+    entityManager.persist(user("Alice", "1"));
+    entityManager.flush();
+
+    assertThrows(PersistenceException.class, () -> {
+      entityManager.persist(user("alice", "2"));
+      entityManager.flush();
+    });
+  }
 }
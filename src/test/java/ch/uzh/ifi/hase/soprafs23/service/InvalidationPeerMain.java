@@ -0,0 +1,38 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+/**
+ * Second instance for TcpUserInvalidationBusMultiJvmTest, runs in its own JVM.
+ * Arguments: own port, port of the test JVM, shared secret. Publishes every user id read from
+ * stdin and prints every invalidation it receives to stdout.
+ */
+public class InvalidationPeerMain {
+
+  public static void main(String[] args) throws Exception {
+    TcpUserInvalidationBus bus = new TcpUserInvalidationBus("127.0.0.1", Integer.parseInt(args[0]),
+        new String[] { "localhost:" + args[1] }, 5, args[2], 16, new UserInvalidationListener() {
+          @Override
+          public void invalidated(long[] userIds) {
+            System.out.println("evicted " + Arrays.stream(userIds).mapToObj(Long::toString)
+                .collect(Collectors.joining(" ")));
+          }
+
+          @Override
+          public void invalidatedAll() {
+            System.out.println("evicted-all");
+          }
+        });
+    System.out.println("ready");
+
+    BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+    String line;
+    while ((line = stdin.readLine()) != null) {
+      bus.publish(Long.parseLong(line.trim()));
+    }
+    bus.destroy();
+  }
+}
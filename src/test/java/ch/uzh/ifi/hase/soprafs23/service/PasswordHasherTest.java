@@ -0,0 +1,64 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PasswordHasherTest {
+
+  private PasswordHasher passwordHasher;
+
+  @BeforeEach
+  public void setup() {
+    // lowest BCrypt cost to keep the test fast
+    passwordHasher = new PasswordHasher(4, 1, 4, 5000, new SimpleMeterRegistry());
+  }
+
+  @AfterEach
+  public void tearDown() {
+    passwordHasher.destroy();
+  }
+
+  @Test
+  public void hash_matchesOnlyOriginalPassword() {
+    String hash = passwordHasher.hash("testPassword");
+
+    assertNotEquals("testPassword", hash);
+    assertTrue(passwordHasher.matches("testPassword", hash));
+    assertFalse(passwordHasher.matches("otherPassword", hash));
+    assertFalse(passwordHasher.needsUpgrade(hash));
+  }
+
+  @Test
+  public void plainTextPassword_matchesAndNeedsUpgrade() {
+    assertTrue(passwordHasher.matches("testPassword", "testPassword"));
+    assertFalse(passwordHasher.matches("otherPassword", "testPassword"));
+    assertTrue(passwordHasher.needsUpgrade("testPassword"));
+  }
+
+  @Test
+  public void dummyHash_isFixedHashOfConfiguredCost() {
+    String dummyHash = passwordHasher.dummyHash();
+
+    assertSame(dummyHash, passwordHasher.dummyHash());
+    assertFalse(passwordHasher.matches("testPassword", dummyHash));
+    assertFalse(passwordHasher.needsUpgrade(dummyHash));
+  }
+
+  @Test
+  public void lowerCostHash_needsUpgrade() {
+    PasswordHasher strongerHasher = new PasswordHasher(5, 1, 4, 5000, new SimpleMeterRegistry());
+    try {
+      String hash = passwordHasher.hash("testPassword");
+
+      assertTrue(strongerHasher.matches("testPassword", hash));
+      assertTrue(strongerHasher.needsUpgrade(hash));
+    }
+    finally {
+      strongerHasher.destroy();
+    }
+  }
+}
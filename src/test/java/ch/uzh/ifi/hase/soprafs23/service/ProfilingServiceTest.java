@@ -0,0 +1,62 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.exceptions.ProfilingInProgressException;
+import ch.uzh.ifi.hase.soprafs23.rest.dto.ProfileSummaryDTO;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProfilingServiceTest {
+
+  // the requested duration is capped at one second
+  private final ProfilingService profilingService = new ProfilingService(1_000, 16 * 1024 * 1024);
+
+  @AfterEach
+  public void tearDown() {
+    profilingService.destroy();
+  }
+
+  @Test
+  public void record_secondRecordingWhileRunning_rejected() throws Exception {
+    CompletableFuture<Path> recording = profilingService.record(60_000);
+
+    assertThrows(ProfilingInProgressException.class, () -> profilingService.record(1_000));
+
+    Path recordingFile = recording.get(10, TimeUnit.SECONDS);
+    try {
+      assertTrue(Files.size(recordingFile) > 0);
+      // the finished recording frees the slot
+      profilingService.record(100).get(10, TimeUnit.SECONDS);
+    }
+    finally {
+      profilingService.deleteRecording(recordingFile);
+    }
+  }
+
+  @Test
+  public void summarize_listsApplicationFrames() throws Exception {
+    CompletableFuture<Path> recording = profilingService.record(500);
+    // some application work to sample
+    SessionActivityTracker tracker = new SessionActivityTracker(10_000, 1_000, 64, System::nanoTime);
+    while (!recording.isDone()) {
+      for (long userId = 0; userId < 10_000; userId++) {
+        tracker.touch(userId);
+      }
+    }
+    Path recordingFile = recording.get();
+
+    ProfileSummaryDTO summary = profilingService.summarize(recordingFile, 500);
+    profilingService.deleteRecording(recordingFile);
+
+    assertEquals(500, summary.getDurationMillis());
+    assertTrue(summary.getHottestFrames().size() <= 20);
+    summary.getHottestFrames().forEach(frame -> assertTrue(frame.getFrame().startsWith("ch.uzh.ifi.hase.soprafs23.")));
+    summary.getTopAllocatingFrames().forEach(frame -> assertTrue(frame.getValue() > 0));
+  }
+}
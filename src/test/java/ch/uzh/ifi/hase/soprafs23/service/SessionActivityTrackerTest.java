@@ -0,0 +1,73 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionActivityTrackerTest {
+
+  private long nanos;
+
+  private SessionActivityTracker tracker;
+
+  @BeforeEach
+  public void setup() {
+    nanos = 0;
+    // 10 second timeout, 1 second ticks, wheel smaller than the timeout to cover multiple rounds
+    tracker = new SessionActivityTracker(10_000, 1_000, 4, () -> nanos);
+  }
+
+  private void advanceSeconds(long seconds) {
+    nanos += TimeUnit.SECONDS.toNanos(seconds);
+  }
+
+  @Test
+  public void idleUser_expiresAfterTimeout() {
+    tracker.touch(1L);
+    tracker.advance();
+
+    advanceSeconds(9);
+    assertTrue(tracker.advance().isEmpty());
+
+    advanceSeconds(1);
+    assertEquals(List.of(1L), tracker.advance());
+    assertEquals(0, tracker.size());
+  }
+
+  @Test
+  public void activeUser_doesNotExpire() {
+    tracker.touch(1L);
+    tracker.touch(2L);
+    for (int i = 0; i < 30; i++) {
+      advanceSeconds(1);
+      tracker.touch(1L);
+      List<Long> expired = tracker.advance();
+      assertFalse(expired.contains(1L));
+    }
+    assertEquals(1, tracker.size());
+  }
+
+  @Test
+  public void removedUser_isNotExpired() {
+    tracker.touch(1L);
+    tracker.remove(1L);
+
+    advanceSeconds(20);
+    assertTrue(tracker.advance().isEmpty());
+  }
+
+  @Test
+  public void expiredUser_isTrackedAgainAfterActivity() {
+    tracker.touch(1L);
+    advanceSeconds(10);
+    assertEquals(List.of(1L), tracker.advance());
+
+    tracker.touch(1L);
+    advanceSeconds(10);
+    assertEquals(List.of(1L), tracker.advance());
+  }
+}
@@ -0,0 +1,229 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs one bus in the test JVM and one in a child JVM (InvalidationPeerMain) and
+ * measures how long the other instance can still read a stale user after a write.
+ */
+public class TcpUserInvalidationBusMultiJvmTest {
+
+  private static final String SECRET = "test-secret";
+
+  private static int freePort() throws IOException {
+    try (ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static String awaitLine(BufferedReader reader, String expected) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.equals(expected)) {
+        return line;
+      }
+    }
+    fail("child JVM exited before printing " + expected);
+    return null;
+  }
+
+  @Test
+  public void writeOnOneInstance_evictedOnTheOther() throws Exception {
+    int testPort = freePort();
+    int childPort = freePort();
+    BlockingQueue<Long> evictedUserIds = new LinkedBlockingQueue<>();
+    CountDownLatch childConnected = new CountDownLatch(1);
+    TcpUserInvalidationBus bus = new TcpUserInvalidationBus("127.0.0.1", testPort,
+        new String[] { "localhost:" + childPort }, 5, SECRET, 16, new UserInvalidationListener() {
+          @Override
+          public void invalidated(long[] userIds) {
+            for (long userId : userIds) {
+              evictedUserIds.add(userId);
+            }
+          }
+
+          @Override
+          public void invalidatedAll() {
+            childConnected.countDown();
+          }
+        });
+
+    String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    Process child = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        InvalidationPeerMain.class.getName(), Integer.toString(childPort), Integer.toString(testPort), SECRET)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+    try (BufferedReader childOut = new BufferedReader(new InputStreamReader(child.getInputStream()));
+         PrintWriter childIn = new PrintWriter(child.getOutputStream(), true)) {
+      awaitLine(childOut, "ready");
+      // both connections are up once each side got its evict all frame
+      awaitLine(childOut, "evicted-all");
+      assertTrue(childConnected.await(10, TimeUnit.SECONDS));
+
+      // write on the child instance
+      long start = System.nanoTime();
+      childIn.println(42);
+      assertEquals(42L, evictedUserIds.poll(10, TimeUnit.SECONDS));
+      long childToTestMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      // write on this instance
+      start = System.nanoTime();
+      bus.publish(7);
+      awaitLine(childOut, "evicted 7");
+      long testToChildMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+      System.out.printf("Stale reads after a write lasted %d ms (child -> test) and %d ms (test -> child)%n",
+          childToTestMillis, testToChildMillis);
+      assertTrue(childToTestMillis < 1000);
+      assertTrue(testToChildMillis < 1000);
+    }
+    finally {
+      bus.destroy();
+      child.destroy();
+      child.waitFor(10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void frameWithoutValidMac_connectionClosed() throws Exception {
+    int port = freePort();
+    BlockingQueue<String> invalidations = new LinkedBlockingQueue<>();
+    TcpUserInvalidationBus bus = new TcpUserInvalidationBus("127.0.0.1", port, new String[0], 5, SECRET, 16,
+        new UserInvalidationListener() {
+          @Override
+          public void invalidated(long[] userIds) {
+            invalidations.add("invalidated");
+          }
+
+          @Override
+          public void invalidatedAll() {
+            invalidations.add("invalidated-all");
+          }
+        });
+    try (Socket socket = new Socket("127.0.0.1", port)) {
+      socket.setSoTimeout(10_000);
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+      in.readLong();
+
+      // an evict all frame signed with a guessed key
+      out.writeLong(1);
+      out.writeLong(1);
+      out.writeInt(-1);
+      out.write(new byte[32]);
+      out.flush();
+
+      assertEquals(-1, in.read());
+      assertTrue(invalidations.isEmpty());
+    }
+    finally {
+      bus.destroy();
+    }
+  }
+
+  @Test
+  public void unauthenticatedConnections_limitedAndClosedAfterTheHandshakeTimeout() throws Exception {
+    int port = freePort();
+    TcpUserInvalidationBus bus = new TcpUserInvalidationBus("127.0.0.1", port, new String[0], 5, SECRET, 1,
+        new UserInvalidationListener() {
+          @Override
+          public void invalidated(long[] userIds) {
+          }
+
+          @Override
+          public void invalidatedAll() {
+          }
+        });
+    try (Socket silent = new Socket("127.0.0.1", port);
+         Socket rejected = new Socket("127.0.0.1", port)) {
+      silent.setSoTimeout(10_000);
+      rejected.setSoTimeout(10_000);
+      new DataInputStream(silent.getInputStream()).readLong();
+
+      // user.invalidation.max-connections is 1
+      assertEquals(-1, rejected.getInputStream().read());
+      // no frame within the handshake timeout
+      long start = System.nanoTime();
+      assertEquals(-1, silent.getInputStream().read());
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 9_000);
+    }
+    finally {
+      bus.destroy();
+    }
+  }
+
+  @Test
+  public void peerNotReading_otherPeersStillReceiveInvalidations() throws Exception {
+    int livePort = freePort();
+    AtomicLong received = new AtomicLong();
+    CountDownLatch liveConnected = new CountDownLatch(1);
+    TcpUserInvalidationBus live = new TcpUserInvalidationBus("127.0.0.1", livePort, new String[0], 5, SECRET, 16,
+        new UserInvalidationListener() {
+          @Override
+          public void invalidated(long[] userIds) {
+            received.addAndGet(userIds.length);
+          }
+
+          @Override
+          public void invalidatedAll() {
+            liveConnected.countDown();
+          }
+        });
+    // sends the challenge and never reads, with a small receive window
+    ServerSocket stalledPeer = new ServerSocket();
+    stalledPeer.setReceiveBufferSize(4096);
+    stalledPeer.bind(new InetSocketAddress("127.0.0.1", 0));
+    TcpUserInvalidationBus bus = new TcpUserInvalidationBus("127.0.0.1", freePort(),
+        new String[] { "localhost:" + stalledPeer.getLocalPort(), "localhost:" + livePort }, 5, SECRET, 16,
+        new UserInvalidationListener() {
+          @Override
+          public void invalidated(long[] userIds) {
+          }
+
+          @Override
+          public void invalidatedAll() {
+          }
+        });
+    try (ServerSocket server = stalledPeer;
+         Socket stalled = server.accept()) {
+      new DataOutputStream(stalled.getOutputStream()).writeLong(1);
+      assertTrue(liveConnected.await(10, TimeUnit.SECONDS));
+
+      // far more than the socket buffers of the stalled connection hold
+      int idsPerRound = 100_000;
+      for (int round = 0; round < 40; round++) {
+        for (int i = 0; i < idsPerRound; i++) {
+          bus.publish((long) round * idsPerRound + i);
+        }
+        long expected = (long) (round + 1) * idsPerRound;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (received.get() < expected && System.nanoTime() < deadline) {
+          Thread.sleep(1);
+        }
+        assertEquals(expected, received.get(), "round " + round);
+      }
+    }
+    finally {
+      bus.destroy();
+      live.destroy();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Login throughput with the second-level and query cache for users on and off,
+ * once for the whole login and once for its two lookups alone (by normalized
+ * username, then by id), which are the part the cache takes over. BCrypt runs
+ * with its lowest cost, otherwise hashing would hide the lookups completely.
+ */
+@Tag("benchmark")
+public class UserCacheBenchmark {
+
+  private static final int USERS = 1_000;
+  private static final int THREADS = 4;
+  private static final long MEASURE_MILLIS = 10_000;
+
+  @Test
+  public void login_cacheOnVersusOff() throws Exception {
+    double[] uncached = run(false);
+    double[] cached = run(true);
+
+    System.out.printf("Logins per second: %.0f without cache, %.0f with cache (%.2fx)%n",
+        uncached[0], cached[0], cached[0] / uncached[0]);
+    System.out.printf("Login lookups per second: %.0f without cache, %.0f with cache (%.2fx)%n",
+        uncached[1], cached[1], cached[1] / uncached[1]);
+    assertTrue(uncached[0] > 0 && cached[0] > 0);
+  }
+
+  // logins and lookups per second
+  private static double[] run(boolean cacheEnabled) throws Exception {
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0",
+        "--spring.datasource.url=jdbc:h2:mem:cache-benchmark-" + cacheEnabled,
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=" + cacheEnabled,
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=" + cacheEnabled,
+        "--spring.jpa.properties.hibernate.generate_statistics=true",
+        "--user.password.hash-cost=4" };
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(arguments)) {
+      UserService userService = context.getBean(UserService.class);
+      UserRepository userRepository = context.getBean(UserRepository.class);
+      ShardRouter shardRouter = context.getBean(ShardRouter.class);
+      Statistics statistics = context.getBean(EntityManagerFactory.class).unwrap(SessionFactory.class).getStatistics();
+      for (int i = 0; i < USERS; i++) {
+        User user = new User();
+        user.setUsername("benchmark" + i);
+        user.setPassword("benchmarkPassword");
+        userService.createUser(user);
+      }
+      LongConsumer login = i -> {
+        User loginInput = new User();
+        loginInput.setUsername("benchmark" + i % USERS);
+        loginInput.setPassword("benchmarkPassword");
+        userService.checkIfUserExistsReverse(loginInput);
+      };
+      LongConsumer lookups = i -> {
+        User user = shardRouter.onShard(0, () -> userRepository.findByUsernameNormalized("benchmark" + i % USERS));
+        shardRouter.onShard(0, () -> userRepository.findById(user.getId()));
+      };
+      // every user is logged in (and thereby cached) once before measuring
+      for (int i = 0; i < USERS; i++) {
+        login.accept(i);
+      }
+
+      statistics.clear();
+      double loginsPerSecond = runFor(login);
+      System.out.printf("Cache %s: %.0f logins/s, %d entity loads and %d queries against the database%n",
+          cacheEnabled ? "on" : "off", loginsPerSecond, statistics.getEntityLoadCount(),
+          statistics.getQueryExecutionCount());
+      if (cacheEnabled) {
+        printHitRatio("user", statistics.getDomainDataRegionStatistics("user"));
+        printHitRatio("user-by-username", statistics.getQueryRegionStatistics("user-by-username"));
+      }
+
+      statistics.clear();
+      double lookupsPerSecond = runFor(lookups);
+      System.out.printf("Cache %s: %.0f login lookups/s, %d entity loads and %d queries against the database%n",
+          cacheEnabled ? "on" : "off", lookupsPerSecond, statistics.getEntityLoadCount(),
+          statistics.getQueryExecutionCount());
+      return new double[] { loginsPerSecond, lookupsPerSecond };
+    }
+  }
+
+  // the threads go through the users one after the other, the first second is warmup
+  private static double runFor(LongConsumer operation) throws Exception {
+    long warmupEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+    long end = warmupEnd + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+    ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+    List<Future<Long>> results = new ArrayList<>();
+    for (int t = 0; t < THREADS; t++) {
+      long first = (long) t * (USERS / THREADS);
+      results.add(executor.submit(() -> {
+        long operations = 0;
+        long measured = 0;
+        long now;
+        while ((now = System.nanoTime()) < end) {
+          operation.accept(first + operations++);
+          if (now >= warmupEnd) {
+            measured++;
+          }
+        }
+        return measured;
+      }));
+    }
+    long operations = 0;
+    for (Future<Long> result : results) {
+      operations += result.get();
+    }
+    executor.shutdown();
+    return operations * 1000.0 / MEASURE_MILLIS;
+  }
+
+  private static void printHitRatio(String region, CacheRegionStatistics regionStatistics) {
+    long hits = regionStatistics.getHitCount();
+    long misses = regionStatistics.getMissCount();
+    System.out.printf("  region %s: %d hits, %d misses, hit ratio %.3f%n",
+        region, hits, misses, hits + misses == 0 ? 0.0 : (double) hits / (hits + misses));
+  }
+}
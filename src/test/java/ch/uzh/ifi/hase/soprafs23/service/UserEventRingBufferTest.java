@@ -0,0 +1,71 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.constant.UserEventType;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class UserEventRingBufferTest {
+
+  @Test
+  public void drain_returnsEventsInPublishingOrder() {
+    UserEventRingBuffer ringBuffer = new UserEventRingBuffer(8);
+    ringBuffer.tryPublish(1, UserEventType.CREATE, 1L);
+    ringBuffer.tryPublish(2, UserEventType.LOGIN, 1L);
+    ringBuffer.tryPublish(3, UserEventType.LOGOUT, 2L);
+
+    List<String> events = new ArrayList<>();
+    int drained = ringBuffer.drain((timestamp, type, userId) -> events.add(timestamp + " " + type + " " + userId), 10);
+
+    assertEquals(3, drained);
+    assertEquals(List.of("1 CREATE 1", "2 LOGIN 1", "3 LOGOUT 2"), events);
+    assertEquals(0, ringBuffer.drain((timestamp, type, userId) -> fail("buffer should be empty"), 10));
+  }
+
+  @Test
+  public void tryPublish_fullBuffer_dropsAndCounts() {
+    UserEventRingBuffer ringBuffer = new UserEventRingBuffer(4);
+    for (int i = 0; i < 4; i++) {
+      assertTrue(ringBuffer.tryPublish(i, UserEventType.LOGIN, i));
+    }
+
+    assertFalse(ringBuffer.tryPublish(4, UserEventType.LOGIN, 4));
+    assertEquals(1, ringBuffer.getDroppedEvents());
+
+    // draining frees the slots again
+    ringBuffer.drain((timestamp, type, userId) -> { }, 2);
+    assertTrue(ringBuffer.tryPublish(5, UserEventType.LOGIN, 5));
+  }
+
+  @Test
+  public void tryPublish_concurrentProducers_noEventLost() throws InterruptedException {
+    UserEventRingBuffer ringBuffer = new UserEventRingBuffer(1 << 16);
+    int producers = 4;
+    int eventsPerProducer = 10_000;
+    ExecutorService executor = Executors.newFixedThreadPool(producers);
+    CountDownLatch start = new CountDownLatch(1);
+    for (int p = 0; p < producers; p++) {
+      executor.submit(() -> {
+        start.await();
+        for (int i = 0; i < eventsPerProducer; i++) {
+          ringBuffer.tryPublish(i, UserEventType.PROFILE_EDIT, i);
+        }
+        return null;
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    int drained = ringBuffer.drain((timestamp, type, userId) -> { }, Integer.MAX_VALUE);
+    assertEquals(producers * eventsPerProducer, drained);
+    assertEquals(0, ringBuffer.getDroppedEvents());
+  }
+}
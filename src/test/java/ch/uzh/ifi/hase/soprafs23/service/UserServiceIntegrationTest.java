@@ -2,15 +2,28 @@ package ch.uzh.ifi.hase.soprafs23.service;
 
 import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.exceptions.UsernameNotUniqueException;
 import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.mockito.stubbing.Answer;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.server.ResponseStatusException;
 
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -29,6 +42,15 @@ public class UserServiceIntegrationTest {
   @Autowired
   private UserService userService;
 
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+
+  @SpyBean
+  private PasswordHasher passwordHasher;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
   @BeforeEach
   public void setup() {
     userRepository.deleteAll();
@@ -73,4 +95,105 @@ public class UserServiceIntegrationTest {
     // check that an error is thrown
     assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser2));
   }
+
+  @Test
+  public void statusWrites_keepOtherUsersCached() {
+    User first = new User();
+    first.setPassword("testPassword");
+    first.setUsername("cachedFirst");
+    first = userService.createUser(first);
+    User second = new User();
+    second.setPassword("testPassword");
+    second.setUsername("cachedSecond");
+    second = userService.createUser(second);
+    Cache cache = entityManagerFactory.unwrap(SessionFactory.class).getCache();
+    userService.getUserProfile(second.getId());
+    assertTrue(cache.containsEntity(User.class, second.getId()));
+
+    userService.getUserProfile(first.getId());
+    userService.setOffline(first.getId());
+    userService.setOffline(List.of(first.getId()));
+
+    // a bulk update query would have evicted the whole region, only the written user is gone
+    assertTrue(cache.containsEntity(User.class, second.getId()));
+    assertFalse(cache.containsEntity(User.class, first.getId()));
+    assertEquals(UserStatus.OFFLINE, userService.getUserProfile(first.getId()).getStatus());
+
+    User changes = new User();
+    changes.setUsername("cachedRenamed");
+    changes.setBirthday(LocalDate.of(1990, 5, 17));
+    userService.putChanges(first.getId(), changes);
+
+    assertTrue(cache.containsEntity(User.class, second.getId()));
+    User renamed = userService.getUserProfile(first.getId());
+    assertEquals("cachedRenamed", renamed.getUsername());
+    assertEquals(User.birthdayDayOfYear(LocalDate.of(1990, 5, 17)), renamed.getBirthdayDayOfYear());
+    // the cached lookup of the new name must not still say "no such user"
+    assertEquals(first.getId(), userRepository.findByUsernameNormalized("cachedrenamed").getId());
+  }
+
+  @Test
+  public void putChanges_nameTakenOnlyInTheDatabase_reportedAsTakenUsername() {
+    // the username directory does not know this row, the unique index rejects the rename
+    insertLegacyUser("Taken", "taken", "testPassword");
+    User user = new User();
+    user.setPassword("testPassword");
+    user.setUsername("renamedLater");
+    long id = userService.createUser(user).getId();
+
+    User changes = new User();
+    changes.setUsername("TAKEN");
+    assertThrows(UsernameNotUniqueException.class, () -> userService.putChanges(id, changes));
+    assertEquals("renamedLater", userService.getUserProfile(id).getUsername());
+  }
+
+  @Test
+  public void createUserAndLogIn_hashOutsideOfTransactions() {
+    List<Boolean> transactionActive = new CopyOnWriteArrayList<>();
+    Answer<?> recordTransaction = invocation -> {
+      transactionActive.add(TransactionSynchronizationManager.isActualTransactionActive());
+      return invocation.callRealMethod();
+    };
+    Mockito.doAnswer(recordTransaction).when(passwordHasher).hash(Mockito.any());
+    Mockito.doAnswer(recordTransaction).when(passwordHasher).matches(Mockito.any(), Mockito.any());
+
+    User newUser = new User();
+    newUser.setPassword("testPassword");
+    newUser.setUsername("hashedOutside");
+    userService.createUser(newUser);
+    User loginInput = new User();
+    loginInput.setPassword("testPassword");
+    loginInput.setUsername("hashedOutside");
+    assertEquals(UserStatus.ONLINE, userService.checkIfUserExistsReverse(loginInput).getStatus());
+
+    // hash on create, verify on login, none of them while holding a connection
+    assertEquals(List.of(false, false), transactionActive);
+  }
+
+  private long insertLegacyUser(String username, String usernameNormalized, String password) {
+    long id = jdbcTemplate.queryForObject("select next value for hibernate_sequence", Long.class);
+    jdbcTemplate.update("insert into user (id, username, username_normalized, password, token, status, creation_date)"
+        + " values (?, ?, ?, ?, ?, 1, ?)", id, username, usernameNormalized, password, "token-" + id, LocalDate.now());
+    return id;
+  }
+
+  private User logIn(String username, String password) {
+    User loginInput = new User();
+    loginInput.setUsername(username);
+    loginInput.setPassword(password);
+    return userService.checkIfUserExistsReverse(loginInput);
+  }
+
+  @Test
+  public void logIn_usernamesCollidingAfterNormalization_exactNameWins() {
+    // two rows from before usernames were normalized, the backfill could only normalize the first one
+    long normalizedId = insertLegacyUser("Legacy", "legacy", "firstPassword");
+    long collidingId = insertLegacyUser("LEGACY", null, "secondPassword");
+
+    assertEquals(collidingId, logIn("LEGACY", "secondPassword").getId());
+    assertEquals(normalizedId, logIn("Legacy", "firstPassword").getId());
+    // no row has exactly this name, the normalized one is used
+    assertEquals(normalizedId, logIn("legacy", "firstPassword").getId());
+    assertThrows(ResponseStatusException.class, () -> logIn("LEGACY", "firstPassword"));
+  }
 }
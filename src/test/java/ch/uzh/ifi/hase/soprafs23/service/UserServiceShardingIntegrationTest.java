@@ -0,0 +1,165 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.web.WebAppConfiguration;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * UserService on three H2 shards.
+ *
+ * @see ShardRouter
+ */
+@WebAppConfiguration
+@SpringBootTest(properties = "user.shards.count=3")
+public class UserServiceShardingIntegrationTest {
+
+  @Autowired
+  private UserService userService;
+
+  @Autowired
+  private ShardRouter shardRouter;
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @Autowired
+  private UsernameDirectoryLoader usernameDirectoryLoader;
+
+  private User createUser(String username) {
+    User user = new User();
+    user.setUsername(username);
+    user.setPassword("testPassword");
+    return userService.createUser(user);
+  }
+
+  @Test
+  public void createUser_spreadsUsersOverAllShards() {
+    Set<Integer> shards = new HashSet<>();
+    for (int i = 0; i < 6; i++) {
+      shards.add(shardRouter.shardOf(createUser("spread" + i).getId()));
+    }
+
+    assertEquals(Set.of(0, 1, 2), shards);
+    List<User> users = userService.getUsers();
+    assertTrue(users.stream().map(User::getUsername).collect(Collectors.toSet())
+        .containsAll(Set.of("spread0", "spread1", "spread2", "spread3", "spread4", "spread5")));
+    // ids are unique across the shards
+    assertEquals(users.size(), users.stream().map(User::getId).distinct().count());
+  }
+
+  @Test
+  public void createUser_duplicateUsernameOnOtherShard_throwsException() {
+    createUser("duplicate");
+
+    // the next insert goes to another shard, the directory still rejects the name
+    assertThrows(ResponseStatusException.class, () -> createUser("duplicate"));
+  }
+
+  @Test
+  public void loginEditAndLogout_routedToTheShardOfTheUser() {
+    User createdUser = createUser("routed");
+    userService.setOffline(createdUser.getId());
+
+    User loginInput = new User();
+    loginInput.setUsername("routed");
+    loginInput.setPassword("testPassword");
+    assertEquals(UserStatus.ONLINE, userService.checkIfUserExistsReverse(loginInput).getStatus());
+
+    User changes = new User();
+    changes.setUsername("routedRenamed");
+    userService.putChanges(createdUser.getId(), changes);
+    assertEquals("routedRenamed", userService.getUserProfile(createdUser.getId()).getUsername());
+
+    // the old name is free again, the new one is taken
+    loginInput.setUsername("routedRenamed");
+    assertEquals(createdUser.getId(), userService.checkIfUserExistsReverse(loginInput).getId());
+    assertNotNull(createUser("routed"));
+
+    userService.setOffline(List.of(createdUser.getId()));
+    assertEquals(UserStatus.OFFLINE, userService.getUserProfile(createdUser.getId()).getStatus());
+  }
+
+  @Test
+  public void load_usersAlreadyOnShards_reservedAndRoutable() {
+    // a user stored by an earlier run, the directory of this run has not seen it
+    long userId = shardRouter.onShard(1, () -> {
+      long id = jdbcTemplate.queryForObject("select next value for hibernate_sequence", Long.class);
+      jdbcTemplate.update("insert into user (id, username, username_normalized, password, token, status, creation_date)"
+          + " values (?, 'Stored', 'stored', 'testPassword', 'stored-token', 1, ?)", id, LocalDate.now());
+      return id;
+    });
+    assertEquals(1, shardRouter.shardOf(userId));
+
+    assertTrue(usernameDirectoryLoader.load() > 0);
+
+    assertThrows(ResponseStatusException.class, () -> createUser("STORED"));
+    User loginInput = new User();
+    loginInput.setUsername("stored");
+    loginInput.setPassword("testPassword");
+    assertEquals(userId, userService.checkIfUserExistsReverse(loginInput).getId());
+  }
+
+  @Test
+  public void restart_persistentShards_keepsUsernamesAndIds(@TempDir Path shardDirectory) {
+    // as command line arguments, they override application.properties
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0", "--user.shards.count=3",
+        "--user.shards.url=jdbc:h2:file:" + shardDirectory.toAbsolutePath() + "/users-shard-%d",
+        "--spring.jpa.hibernate.ddl-auto=update",
+        // the JCache manager is shared by all contexts in this JVM, closing one would close the caches of this test
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false" };
+    Set<Long> userIds = new HashSet<>();
+    try (ConfigurableApplicationContext firstRun = new SpringApplicationBuilder(Application.class)
+        .run(arguments)) {
+      UserService service = firstRun.getBean(UserService.class);
+      for (int i = 0; i < 3; i++) {
+        User user = new User();
+        user.setUsername("persisted" + i);
+        user.setPassword("testPassword");
+        userIds.add(service.createUser(user).getId());
+      }
+    }
+
+    try (ConfigurableApplicationContext secondRun = new SpringApplicationBuilder(Application.class)
+        .run(arguments)) {
+      UserService service = secondRun.getBean(UserService.class);
+      User duplicate = new User();
+      duplicate.setUsername("PERSISTED0");
+      duplicate.setPassword("testPassword");
+      assertThrows(ResponseStatusException.class, () -> service.createUser(duplicate));
+
+      User loginInput = new User();
+      loginInput.setUsername("persisted1");
+      loginInput.setPassword("testPassword");
+      assertTrue(userIds.contains(service.checkIfUserExistsReverse(loginInput).getId()));
+
+      // the id sequences continue after the stored users
+      for (int i = 0; i < 3; i++) {
+        User user = new User();
+        user.setUsername("afterRestart" + i);
+        user.setPassword("testPassword");
+        assertTrue(userIds.add(service.createUser(user).getId()));
+      }
+    }
+  }
+}
@@ -1,16 +1,39 @@
 package ch.uzh.ifi.hase.soprafs23.service;
 
+import ch.uzh.ifi.hase.soprafs23.constant.UserEventType;
 import ch.uzh.ifi.hase.soprafs23.constant.UserStatus;
 import ch.uzh.ifi.hase.soprafs23.entity.User;
+import ch.uzh.ifi.hase.soprafs23.exceptions.InvalidCredentialsException;
+import ch.uzh.ifi.hase.soprafs23.repository.ShardRouter;
 import ch.uzh.ifi.hase.soprafs23.repository.UserRepository;
+import org.hibernate.exception.ConstraintViolationException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
+import org.mockito.Spy;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.web.server.ResponseStatusException;
 
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.Optional;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 public class UserServiceTest {
@@ -18,11 +41,38 @@ public class UserServiceTest {
   @Mock
   private UserRepository userRepository;
 
+  @Mock
+  private SessionActivityTracker sessionActivityTracker;
+
+  @Mock
+  private UserEventLog userEventLog;
+
+  @Mock
+  private PasswordHasher passwordHasher;
+
+  @Mock
+  private UserListResponseCache userListResponseCache;
+
+  @Mock
+  private UserInvalidationBus userInvalidationBus;
+
+  @Spy
+  private ShardRouter shardRouter = ShardRouter.unsharded();
+
+  @Spy
+  private UsernameDirectory usernameDirectory = new UsernameDirectory(ShardRouter.unsharded());
+
   @InjectMocks
   private UserService userService;
 
   private User testUser;
 
+  // what the repository throws when the given unique constraint fails
+  private static DataIntegrityViolationException uniqueConstraintViolation(String constraintName) {
+    return new DataIntegrityViolationException("could not execute statement",
+        new ConstraintViolationException("could not execute statement", new SQLException(), constraintName));
+  }
+
   @BeforeEach
   public void setup() {
     MockitoAnnotations.openMocks(this);
@@ -62,6 +112,9 @@ public class UserServiceTest {
     // when -> setup additional mocks for UserRepository
     Mockito.when(userRepository.findByPassword(Mockito.any())).thenReturn(testUser);
     Mockito.when(userRepository.findByUsername(Mockito.any())).thenReturn(null);
+    // the unique constraint on the username rejects the second insert
+    Mockito.when(userRepository.save(Mockito.any()))
+        .thenThrow(uniqueConstraintViolation("PUBLIC.UK_USER_USERNAME_INDEX_2 ON PUBLIC.USER(USERNAME)"));
 
     // then -> attempt to create second user with same user -> check that an error
     // is thrown
@@ -76,10 +129,177 @@ public class UserServiceTest {
     // when -> setup additional mocks for UserRepository
     Mockito.when(userRepository.findByPassword(Mockito.any())).thenReturn(testUser);
     Mockito.when(userRepository.findByUsername(Mockito.any())).thenReturn(testUser);
+    Mockito.when(userRepository.save(Mockito.any()))
+        .thenThrow(uniqueConstraintViolation("PUBLIC.UK_USER_USERNAME_NORMALIZED_INDEX_2 ON PUBLIC.USER(USERNAME_NORMALIZED)"));
 
     // then -> attempt to create second user with same user -> check that an error
     // is thrown
     assertThrows(ResponseStatusException.class, () -> userService.createUser(testUser));
   }
 
+  @Test
+  public void createUser_otherConstraintViolated_notReportedAsTakenUsername() {
+    DataIntegrityViolationException tokenCollision =
+        uniqueConstraintViolation("PUBLIC.UK_USER_TOKEN_INDEX_2 ON PUBLIC.USER(TOKEN)");
+    Mockito.when(userRepository.save(Mockito.any())).thenThrow(tokenCollision);
+
+    assertSame(tokenCollision, assertThrows(DataIntegrityViolationException.class,
+        () -> userService.createUser(testUser)));
+  }
+
+  @Test
+  public void getUserProfile_concurrentRequests_oneQuery() throws Exception {
+    int requests = 16;
+    CountDownLatch queryStarted = new CountDownLatch(1);
+    CountDownLatch releaseQuery = new CountDownLatch(1);
+    Mockito.when(userRepository.findById(1L)).thenAnswer(invocation -> {
+      queryStarted.countDown();
+      releaseQuery.await();
+      return Optional.of(testUser);
+    });
+
+    List<Thread> requestThreads = new CopyOnWriteArrayList<>();
+    ExecutorService executor = Executors.newFixedThreadPool(requests, runnable -> {
+      Thread thread = new Thread(runnable);
+      requestThreads.add(thread);
+      return thread;
+    });
+    List<Future<User>> results = new ArrayList<>();
+    for (int i = 0; i < requests; i++) {
+      results.add(executor.submit(() -> userService.getUserProfile(1L)));
+    }
+
+    // keep the first query running until all other requests are parked waiting for it
+    assertTrue(queryStarted.await(5, TimeUnit.SECONDS));
+    awaitAllWaiting(requestThreads, requests);
+    releaseQuery.countDown();
+
+    Set<User> profiles = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Future<User> result : results) {
+      User profile = result.get(5, TimeUnit.SECONDS);
+      assertEquals(testUser.getId(), profile.getId());
+      assertEquals(testUser.getUsername(), profile.getUsername());
+      profiles.add(profile);
+    }
+    executor.shutdown();
+    Mockito.verify(userRepository, Mockito.times(1)).findById(1L);
+    // every request got its own detached copy, none got the loaded entity
+    assertEquals(requests, profiles.size());
+    assertFalse(profiles.contains(testUser));
+  }
+
+  // the querying thread waits on releaseQuery, the others in the single flight
+  private static void awaitAllWaiting(List<Thread> threads, int count) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (threads.size() < count || !threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING)) {
+      assertTrue(System.nanoTime() < deadline, "requests did not join the running query");
+      Thread.onSpinWait();
+    }
+  }
+
+  @Test
+  public void getUserProfile_afterCompletedLoad_queriesAgain() {
+    Mockito.when(userRepository.findById(1L)).thenReturn(Optional.of(testUser));
+
+    userService.getUserProfile(1L);
+    userService.getUserProfile(1L);
+
+    Mockito.verify(userRepository, Mockito.times(2)).findById(1L);
+  }
+
+  @Test
+  public void expireSessions_onlyChangedUsersPublished() {
+    // user 2 is already offline, user 3 does not exist
+    Mockito.when(userRepository.updateStatus(List.of(1L, 2L, 3L), UserStatus.OFFLINE)).thenReturn(List.of(1L));
+
+    assertEquals(1, userService.expireSessions(List.of(1L, 2L, 3L)));
+
+    // one statement for all of them
+    Mockito.verify(userRepository).updateStatus(List.of(1L, 2L, 3L), UserStatus.OFFLINE);
+    Mockito.verify(userRepository, Mockito.never()).findAllById(Mockito.any());
+    Mockito.verify(userEventLog).publish(UserEventType.SESSION_EXPIRED, 1L);
+    Mockito.verify(userEventLog, Mockito.never()).publish(Mockito.any(), Mockito.eq(2L));
+    Mockito.verify(userEventLog, Mockito.never()).publish(Mockito.any(), Mockito.eq(3L));
+  }
+
+  @Test
+  public void setOffline_insideTransaction_publishedAfterCommit() {
+    Mockito.when(userRepository.updateStatus(List.of(1L), UserStatus.OFFLINE)).thenReturn(List.of(1L));
+
+    TransactionSynchronizationManager.initSynchronization();
+    try {
+      userService.setOffline(List.of(1L));
+      Mockito.verify(userEventLog, Mockito.never()).publish(Mockito.any(), Mockito.anyLong());
+      Mockito.verify(userListResponseCache, Mockito.never()).invalidate();
+      Mockito.verify(userInvalidationBus, Mockito.never()).publish(Mockito.anyLong());
+
+      TransactionSynchronizationManager.getSynchronizations().forEach(TransactionSynchronization::afterCommit);
+      Mockito.verify(userEventLog).publish(UserEventType.LOGOUT, 1L);
+      Mockito.verify(userListResponseCache).invalidate();
+      Mockito.verify(userInvalidationBus).publish(1L);
+    }
+    finally {
+      TransactionSynchronizationManager.clearSynchronization();
+    }
+  }
+
+  private static User userBornOn(long id, String birthday) {
+    User user = new User();
+    user.setId(id);
+    user.setBirthday(LocalDate.parse(birthday));
+    return user;
+  }
+
+  @Test
+  public void getUpcomingBirthdays_rangeAcrossYearEnd_sortedByUpcomingDate() {
+    User newYear = userBornOn(1L, "1999-01-01");
+    User newYearsEve = userBornOn(2L, "1990-12-31");
+    Mockito.when(userRepository.findByBirthdayDayOfYearIn(Mockito.any())).thenReturn(List.of(newYear, newYearsEve));
+
+    List<User> users = userService.getUpcomingBirthdays(LocalDate.parse("2022-12-30"), 4);
+
+    Mockito.verify(userRepository).findByBirthdayDayOfYearIn(Set.of(365, 366, 1, 2));
+    assertEquals(List.of(newYearsEve, newYear), users);
+  }
+
+  @Test
+  public void getUpcomingBirthdays_februaryTwentyEighthInNonLeapYear_includesLeapDay() {
+    Mockito.when(userRepository.findByBirthdayDayOfYearIn(Mockito.any())).thenReturn(List.of());
+
+    userService.getUpcomingBirthdays(LocalDate.parse("2023-02-28"), 1);
+    userService.getUpcomingBirthdays(LocalDate.parse("2024-02-28"), 1);
+
+    // 2023 has no February 29, 2024 does and February 28 only covers itself
+    Mockito.verify(userRepository).findByBirthdayDayOfYearIn(Set.of(59, 60));
+    Mockito.verify(userRepository).findByBirthdayDayOfYearIn(Set.of(59));
+  }
+
+  @Test
+  public void checkIfUserExistsReverse_differentCase_findsUserByNormalizedName() {
+    testUser.setStatus(UserStatus.ONLINE);
+    Mockito.when(userRepository.findByUsernameNormalized("testusername")).thenReturn(testUser);
+    Mockito.when(userRepository.findById(1L)).thenReturn(Optional.of(testUser));
+    Mockito.when(passwordHasher.matches("testPassword", "testPassword")).thenReturn(true);
+
+    User loginInput = new User();
+    loginInput.setUsername("TESTUSERNAME");
+    loginInput.setPassword("testPassword");
+
+    assertSame(testUser, userService.checkIfUserExistsReverse(loginInput));
+    // no user has exactly this name, the normalized match is used
+    Mockito.verify(userRepository).findByUsername("TESTUSERNAME");
+  }
+
+  @Test
+  public void checkIfUserExistsReverse_unknownUsername_verifiesAgainstDummyHash() {
+    Mockito.when(passwordHasher.dummyHash()).thenReturn("dummyHash");
+
+    User loginInput = new User();
+    loginInput.setUsername("unknownUsername");
+    loginInput.setPassword("testPassword");
+
+    assertThrows(InvalidCredentialsException.class, () -> userService.checkIfUserExistsReverse(loginInput));
+    // the same hashing work as a wrong password for an existing user
+    Mockito.verify(passwordHasher).matches("testPassword", "dummyHash");
+  }
 }
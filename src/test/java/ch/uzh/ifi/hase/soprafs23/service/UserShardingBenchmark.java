@@ -0,0 +1,94 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Write throughput (profile edits, each one update transaction on the shard of
+ * the user) as the number of H2 shards grows.
+ */
+@Tag("benchmark")
+public class UserShardingBenchmark {
+
+  private static final int[] SHARD_COUNTS = { 1, 2, 4, 8 };
+  private static final int USERS = 1_000;
+  private static final int THREADS = 8;
+  private static final long WARMUP_MILLIS = 2_000;
+  private static final long MEASURE_MILLIS = 10_000;
+
+  @Test
+  public void profileEdits_growingShardCount() throws Exception {
+    List<String> results = new ArrayList<>();
+    for (int shardCount : SHARD_COUNTS) {
+      double writesPerSecond = run(shardCount);
+      results.add(String.format("%d shards: %.0f writes/s", shardCount, writesPerSecond));
+      assertTrue(writesPerSecond > 0);
+    }
+    System.out.println("Profile edits with " + THREADS + " threads: " + String.join(", ", results));
+  }
+
+  private static double run(int shardCount) throws Exception {
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0",
+        "--user.shards.count=" + shardCount,
+        "--user.shards.url=jdbc:h2:mem:sharding-benchmark-" + shardCount + "-%d",
+        // the JCache manager is shared by all contexts in this JVM
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false",
+        "--user.password.hash-cost=4" };
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(arguments)) {
+      UserService userService = context.getBean(UserService.class);
+      long[] userIds = new long[USERS];
+      for (int i = 0; i < USERS; i++) {
+        User user = new User();
+        user.setUsername("sharded" + i);
+        user.setPassword("benchmarkPassword");
+        userIds[i] = userService.createUser(user).getId();
+      }
+
+      long warmupEnd = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WARMUP_MILLIS);
+      long end = warmupEnd + TimeUnit.MILLISECONDS.toNanos(MEASURE_MILLIS);
+      ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+      List<Future<Long>> results = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        int first = t * (USERS / THREADS);
+        results.add(executor.submit(() -> {
+          long writes = 0;
+          long measured = 0;
+          long now;
+          while ((now = System.nanoTime()) < end) {
+            User edit = new User();
+            edit.setBirthday(LocalDate.ofEpochDay(writes % 20_000));
+            userService.putChanges(userIds[(int) ((first + writes++) % USERS)], edit);
+            if (now >= warmupEnd) {
+              measured++;
+            }
+          }
+          return measured;
+        }));
+      }
+      long writes = 0;
+      for (Future<Long> result : results) {
+        writes += result.get();
+      }
+      executor.shutdown();
+      double writesPerSecond = writes * 1000.0 / MEASURE_MILLIS;
+      System.out.printf("%d shards: %.0f writes/s%n", shardCount, writesPerSecond);
+      return writesPerSecond;
+    }
+  }
+}
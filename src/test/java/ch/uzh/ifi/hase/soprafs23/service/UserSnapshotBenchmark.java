@@ -0,0 +1,112 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import ch.uzh.ifi.hase.soprafs23.entity.User;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Restore time of 1M users from the binary snapshot of UserSnapshotService
+ * against restoring an SQL script of the same table (H2 SCRIPT / RUNSCRIPT).
+ */
+@Tag("benchmark")
+public class UserSnapshotBenchmark {
+
+  private static final int USERS = Integer.getInteger("benchmark.users", 1_000_000);
+  private static final int RUNS = 3;
+  // a BCrypt hash has 60 characters
+  private static final String PASSWORD_HASH = "$2a$10$" + "x".repeat(53);
+
+  @Test
+  public void restore_snapshotVersusSqlScript(@TempDir Path directory) throws Exception {
+    Path snapshotFile = directory.resolve("user-snapshot.bin");
+    Path scriptFile = directory.resolve("user-snapshot.sql");
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0",
+        "--spring.datasource.url=jdbc:h2:mem:snapshot-benchmark",
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false" };
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(arguments)) {
+      JdbcTemplate jdbcTemplate = context.getBean(JdbcTemplate.class);
+      insertUsers(jdbcTemplate);
+      UserSnapshotService snapshotService = new UserSnapshotService(jdbcTemplate, null, snapshotFile.toString(), 1);
+
+      long start = System.nanoTime();
+      assertEquals(USERS, snapshotService.writeSnapshot());
+      System.out.printf("Binary snapshot: written in %d ms, %d bytes%n", millisSince(start), Files.size(snapshotFile));
+      start = System.nanoTime();
+      jdbcTemplate.execute("script to '" + scriptFile + "' table user");
+      System.out.printf("SQL script: written in %d ms, %d bytes%n", millisSince(start), Files.size(scriptFile));
+
+      // only one copy of the users is kept in memory at a time
+      jdbcTemplate.execute("truncate table user");
+
+      List<Long> scriptRestores = new ArrayList<>();
+      for (int run = 0; run < RUNS; run++) {
+        // a new empty database each time, the script creates the table and its indexes
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:script-restore-" + run, "sa", "");
+             Statement statement = connection.createStatement()) {
+          start = System.nanoTime();
+          statement.execute("runscript from '" + scriptFile + "'");
+          scriptRestores.add(millisSince(start));
+          try (ResultSet count = statement.executeQuery("select count(*) from user")) {
+            assertTrue(count.next());
+            assertEquals(USERS, count.getInt(1));
+          }
+        }
+      }
+
+      String countIndexes = "select count(distinct index_name) from information_schema.indexes where table_name = 'USER'";
+      int indexes = jdbcTemplate.queryForObject(countIndexes, Integer.class);
+      List<Long> snapshotRestores = new ArrayList<>();
+      for (int run = 0; run < RUNS; run++) {
+        start = System.nanoTime();
+        assertEquals(USERS, snapshotService.restore());
+        snapshotRestores.add(millisSince(start));
+        // the restore builds the indexes it dropped again
+        assertEquals(indexes, jdbcTemplate.queryForObject(countIndexes, Integer.class));
+        jdbcTemplate.execute("truncate table user");
+      }
+
+      System.out.printf("Restore of %d users: binary snapshot %s ms, SQL script %s ms%n",
+          USERS, snapshotRestores, scriptRestores);
+    }
+  }
+
+  private static void insertUsers(JdbcTemplate jdbcTemplate) {
+    List<Object[]> batch = new ArrayList<>();
+    for (int i = 1; i <= USERS; i++) {
+      String username = "snapshotUser" + i;
+      LocalDate birthday = i % 3 == 0 ? null : LocalDate.ofEpochDay(i % 20_000);
+      batch.add(new Object[] { (long) i, PASSWORD_HASH, username, User.normalizeUsername(username),
+          UUID.randomUUID().toString(), i % 2, LocalDate.ofEpochDay(19_000 + i % 1000), birthday,
+          User.birthdayDayOfYear(birthday) });
+      if (batch.size() == 10_000) {
+        jdbcTemplate.batchUpdate("insert into user (id, password, username, username_normalized, token, status, "
+            + "creation_date, birthday, birthday_day_of_year) values (?, ?, ?, ?, ?, ?, ?, ?, ?)", batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private static long millisSince(long start) {
+    return (System.nanoTime() - start) / 1_000_000;
+  }
+}
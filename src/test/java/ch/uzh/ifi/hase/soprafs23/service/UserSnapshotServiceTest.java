@@ -0,0 +1,62 @@
+package ch.uzh.ifi.hase.soprafs23.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.web.WebAppConfiguration;
+
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test class for the snapshot and restore of the user table.
+ *
+ * @see UserSnapshotService
+ */
+@WebAppConfiguration
+@SpringBootTest
+public class UserSnapshotServiceTest {
+
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+
+  @BeforeEach
+  public void setup() {
+    jdbcTemplate.update("delete from user");
+  }
+
+  @Test
+  public void restore_usernamesCollidingAfterNormalization_keepsNormalizedNamesAsWritten(@TempDir Path directory)
+      throws Exception {
+    // rows from before the normalized column, the backfill left the second one null
+    insertLegacyUser(1, "Alice", "alice");
+    insertLegacyUser(2, "ALICE", null);
+    UserSnapshotService snapshotService =
+        new UserSnapshotService(jdbcTemplate, null, directory.resolve("user-snapshot.bin").toString(), 1);
+    assertEquals(2, snapshotService.writeSnapshot());
+    jdbcTemplate.update("delete from user");
+
+    assertEquals(2, snapshotService.restore());
+
+    assertEquals("alice", usernameNormalized(1));
+    assertNull(usernameNormalized(2));
+    // the unique constraint on username_normalized was built again
+    assertThrows(DataIntegrityViolationException.class, () -> insertLegacyUser(3, "aLiCe", "alice"));
+  }
+
+  private void insertLegacyUser(long id, String username, String usernameNormalized) {
+    jdbcTemplate.update("insert into user (id, username, username_normalized, password, token, status, creation_date)"
+        + " values (?, ?, ?, ?, ?, 1, ?)", id, username, usernameNormalized, "password", "token-" + id, LocalDate.now());
+  }
+
+  private String usernameNormalized(long id) {
+    return jdbcTemplate.queryForObject("select username_normalized from user where id = ?", String.class, id);
+  }
+}
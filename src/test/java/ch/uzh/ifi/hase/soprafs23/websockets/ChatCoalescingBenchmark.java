@@ -0,0 +1,134 @@
+package ch.uzh.ifi.hase.soprafs23.websockets;
+
+import ch.uzh.ifi.hase.soprafs23.Application;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Delivered chat messages per second and CPU time per delivered message with
+ * 5k connected sessions, with coalescing into batched frames on and off. One
+ * session sends messages as fast as the server takes them, every message is
+ * broadcast to all sessions. A single sender, because without coalescing
+ * broadcasts of concurrent senders may write to a session at the same time,
+ * which closes it. Clients and server share this JVM, so the CPU time includes
+ * receiving the frames.
+ */
+@Tag("benchmark")
+public class ChatCoalescingBenchmark {
+
+  private static final int SESSIONS = Integer.getInteger("benchmark.sessions", 5_000);
+  private static final long WARMUP_MILLIS = 5_000;
+  private static final long MEASURE_MILLIS = 15_000;
+  private static final String MESSAGE = "hello";
+
+  @Test
+  public void broadcast_coalescingOnVersusOff() throws Exception {
+    double[] uncoalesced = run(false);
+    double[] coalesced = run(true);
+
+    System.out.printf("%d sessions: %.0f messages/s and %.2f us CPU per message without coalescing, "
+            + "%.0f messages/s and %.2f us CPU per message with coalescing%n",
+        SESSIONS, uncoalesced[0], uncoalesced[1], coalesced[0], coalesced[1]);
+    assertTrue(uncoalesced[0] > 0 && coalesced[0] > 0);
+  }
+
+  // delivered messages per second and CPU microseconds per delivered message
+  private static double[] run(boolean coalescing) throws Exception {
+    String[] arguments = {
+        "--server.port=0", "--management.server.port=0",
+        "--spring.datasource.url=jdbc:h2:mem:chat-benchmark-" + coalescing,
+        "--spring.jpa.properties.hibernate.cache.use_second_level_cache=false",
+        "--spring.jpa.properties.hibernate.cache.use_query_cache=false",
+        "--server.tomcat.max-connections=" + (SESSIONS + 100),
+        "--chat.coalescing.enabled=" + coalescing,
+        // coalesced frames fit into the default 8 KB message buffer of the client sessions
+        "--chat.coalescing.max-batch-bytes=8000" };
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class).run(arguments)) {
+      int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+      StandardWebSocketClient client = new StandardWebSocketClient();
+
+      AtomicLong received = new AtomicLong();
+      AtomicLong closed = new AtomicLong();
+      TextWebSocketHandler counter = new TextWebSocketHandler() {
+        @Override
+        protected void handleTextMessage(WebSocketSession session, TextMessage message) {
+          String payload = message.getPayload();
+          if (payload.startsWith("[")) {
+            // a JSON array of messages without commas of their own
+            long messages = 1;
+            for (int i = 0; i < payload.length(); i++) {
+              if (payload.charAt(i) == ',') {
+                messages++;
+              }
+            }
+            received.addAndGet(messages);
+          }
+          else {
+            received.incrementAndGet();
+          }
+        }
+
+        @Override
+        public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+          closed.incrementAndGet();
+        }
+      };
+      List<WebSocketSession> sessions = new ArrayList<>(SESSIONS);
+      for (int i = 0; i < SESSIONS; i++) {
+        sessions.add(client.doHandshake(counter, "ws://localhost:" + port + "/chat").get(10, TimeUnit.SECONDS));
+      }
+
+      AtomicBoolean running = new AtomicBoolean(true);
+      WebSocketSession senderSession = sessions.get(0);
+      Thread sender = new Thread(() -> {
+        try {
+          while (running.get()) {
+            senderSession.sendMessage(new TextMessage(MESSAGE));
+          }
+        }
+        catch (Exception e) {
+          // the session closes at the end of the run
+        }
+      });
+      sender.start();
+
+      Thread.sleep(WARMUP_MILLIS);
+      com.sun.management.OperatingSystemMXBean os =
+          (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+      long cpuStart = os.getProcessCpuTime();
+      long receivedStart = received.get();
+      Thread.sleep(MEASURE_MILLIS);
+      long delivered = received.get() - receivedStart;
+      long cpuNanos = os.getProcessCpuTime() - cpuStart;
+      running.set(false);
+      assertEquals(0, closed.get());
+
+      for (WebSocketSession session : sessions) {
+        session.close();
+      }
+      sender.join(10_000);
+      double messagesPerSecond = delivered * 1000.0 / MEASURE_MILLIS;
+      double cpuMicrosPerMessage = delivered == 0 ? 0 : cpuNanos / 1000.0 / delivered;
+      System.out.printf("Coalescing %s: %.0f messages/s delivered, %.2f us CPU per message, %.0f%% CPU of one core%n",
+          coalescing ? "on" : "off", messagesPerSecond, cpuMicrosPerMessage, cpuNanos * 100.0 / (MEASURE_MILLIS * 1e6));
+      return new double[] { messagesPerSecond, cpuMicrosPerMessage };
+    }
+  }
+}
@@ -0,0 +1,24 @@
+package ch.uzh.ifi.hase.soprafs23.websockets;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChatWebSocketHandlerTest {
+
+  @Test
+  public void parseUserId_plainNumber_parsed() {
+    assertEquals(42L, ChatWebSocketHandler.parseUserId("42"));
+  }
+
+  @Test
+  public void parseUserId_invalidInput_ignored() {
+    assertNull(ChatWebSocketHandler.parseUserId(null));
+    assertNull(ChatWebSocketHandler.parseUserId(""));
+    assertNull(ChatWebSocketHandler.parseUserId("-1"));
+    // Arabic-Indic digits are digits for Character.isDigit, but not for Long.valueOf
+    assertNull(ChatWebSocketHandler.parseUserId("١٢"));
+    // larger than Long.MAX_VALUE
+    assertNull(ChatWebSocketHandler.parseUserId("99999999999999999999"));
+  }
+}
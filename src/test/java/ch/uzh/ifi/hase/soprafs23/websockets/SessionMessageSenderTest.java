@@ -0,0 +1,212 @@
+package ch.uzh.ifi.hase.soprafs23.websockets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+public class SessionMessageSenderTest {
+
+  private ScheduledExecutorService scheduler;
+
+  private ExecutorService flushExecutor;
+
+  private WebSocketSession session;
+
+  @BeforeEach
+  public void setup() {
+    scheduler = Executors.newSingleThreadScheduledExecutor(new CustomizableThreadFactory("test-flush-"));
+    flushExecutor = Executors.newSingleThreadExecutor(new CustomizableThreadFactory("test-flush-send-"));
+    session = Mockito.mock(WebSocketSession.class);
+    when(session.isOpen()).thenReturn(true);
+  }
+
+  @AfterEach
+  public void tearDown() {
+    scheduler.shutdownNow();
+    flushExecutor.shutdownNow();
+  }
+
+  @Test
+  public void singleMessage_sentImmediatelyAsArray() throws Exception {
+    SessionMessageSender sender = new SessionMessageSender(session, null, scheduler, flushExecutor, 1_000, 65536);
+
+    sender.send("hello \"chat\"\n");
+
+    ArgumentCaptor<TextMessage> frame = ArgumentCaptor.forClass(TextMessage.class);
+    verify(session).sendMessage(frame.capture());
+    assertEquals("[\"hello \\\"chat\\\"\\n\"]", frame.getValue().getPayload());
+  }
+
+  @Test
+  public void messagesDuringSend_coalescedIntoOneFrame() throws Exception {
+    SessionMessageSender sender = new SessionMessageSender(session, null, scheduler, flushExecutor, 5, 65536);
+    CountDownLatch firstFrameStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstFrame = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (firstFrameStarted.getCount() > 0) {
+        firstFrameStarted.countDown();
+        releaseFirstFrame.await(5, TimeUnit.SECONDS);
+      }
+      return null;
+    }).when(session).sendMessage(any());
+
+    Thread first = new Thread(() -> sender.send("a"));
+    first.start();
+    assertTrue(firstFrameStarted.await(5, TimeUnit.SECONDS));
+    // the first frame is still being sent, these only get queued
+    sender.send("b");
+    sender.send("c");
+    releaseFirstFrame.countDown();
+    first.join(5_000);
+
+    ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+    verify(session, times(2)).sendMessage(frames.capture());
+    assertEquals("[\"a\"]", frames.getAllValues().get(0).getPayload());
+    assertEquals("[\"b\",\"c\"]", frames.getAllValues().get(1).getPayload());
+  }
+
+  @Test
+  public void batchLimit_splitsFrames() throws Exception {
+    SessionMessageSender sender = new SessionMessageSender(session, null, scheduler, flushExecutor, 5, 1);
+    CountDownLatch firstFrameStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstFrame = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (firstFrameStarted.getCount() > 0) {
+        firstFrameStarted.countDown();
+        releaseFirstFrame.await(5, TimeUnit.SECONDS);
+      }
+      return null;
+    }).when(session).sendMessage(any());
+
+    Thread first = new Thread(() -> sender.send("a"));
+    first.start();
+    assertTrue(firstFrameStarted.await(5, TimeUnit.SECONDS));
+    sender.send("b");
+    sender.send("c");
+    releaseFirstFrame.countDown();
+    first.join(5_000);
+
+    verify(session, times(3)).sendMessage(any());
+  }
+
+  @Test
+  public void batchLimit_countsUtf8Bytes() throws Exception {
+    // ["\u00fc"] is 7 bytes but only 5 chars
+    SessionMessageSender sender = new SessionMessageSender(session, null, scheduler, flushExecutor, 5, 6);
+    CountDownLatch firstFrameStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstFrame = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (firstFrameStarted.getCount() > 0) {
+        firstFrameStarted.countDown();
+        releaseFirstFrame.await(5, TimeUnit.SECONDS);
+      }
+      return null;
+    }).when(session).sendMessage(any());
+
+    Thread first = new Thread(() -> sender.send("a"));
+    first.start();
+    assertTrue(firstFrameStarted.await(5, TimeUnit.SECONDS));
+    sender.send("\u00fc");
+    sender.send("b");
+    releaseFirstFrame.countDown();
+    first.join(5_000);
+
+    ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+    verify(session, times(3)).sendMessage(frames.capture());
+    assertEquals("[\"\u00fc\"]", frames.getAllValues().get(1).getPayload());
+    assertEquals("[\"b\"]", frames.getAllValues().get(2).getPayload());
+  }
+
+  @Test
+  public void delayedFrame_sentOnFlushExecutorNotOnScheduler() throws Exception {
+    SessionMessageSender sender = new SessionMessageSender(session, null, scheduler, flushExecutor, 5, 65536);
+    CountDownLatch firstFrameStarted = new CountDownLatch(1);
+    CountDownLatch releaseFirstFrame = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (firstFrameStarted.getCount() > 0) {
+        firstFrameStarted.countDown();
+        releaseFirstFrame.await(5, TimeUnit.SECONDS);
+      }
+      return null;
+    }).when(session).sendMessage(any());
+
+    Thread first = new Thread(() -> sender.send("a"));
+    first.start();
+    assertTrue(firstFrameStarted.await(5, TimeUnit.SECONDS));
+    sender.send("b");
+    sender.send("c");
+    releaseFirstFrame.countDown();
+    first.join(5_000);
+    // the last frame carried two messages, the next one waits for the flush window
+    String[] sendingThread = new String[1];
+    CountDownLatch delayedFrameSent = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      sendingThread[0] = Thread.currentThread().getName();
+      delayedFrameSent.countDown();
+      return null;
+    }).when(session).sendMessage(any());
+    sender.send("d");
+
+    assertTrue(delayedFrameSent.await(5, TimeUnit.SECONDS));
+    assertTrue(sendingThread[0].startsWith("test-flush-send-"), sendingThread[0]);
+  }
+
+  @Test
+  public void schedulerWithoutFlushExecutor_rejected() {
+    assertThrows(IllegalArgumentException.class,
+        () -> new SessionMessageSender(session, null, scheduler, null, 5, 65536));
+  }
+
+  @Test
+  public void withoutScheduler_messagesSentAsTheyAre() throws Exception {
+    SessionMessageSender sender = new SessionMessageSender(session, null, null, null, 5, 65536);
+
+    sender.send("hello \"chat\"");
+
+    ArgumentCaptor<TextMessage> frame = ArgumentCaptor.forClass(TextMessage.class);
+    verify(session).sendMessage(frame.capture());
+    assertEquals("hello \"chat\"", frame.getValue().getPayload());
+  }
+
+  @Test
+  public void withExecutor_sendsRunOnExecutor() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      SessionMessageSender sender = new SessionMessageSender(session, executor, null, null, 5, 65536);
+      CountDownLatch sent = new CountDownLatch(2);
+      Thread caller = Thread.currentThread();
+      doAnswer(invocation -> {
+        assertNotSame(caller, Thread.currentThread());
+        sent.countDown();
+        return null;
+      }).when(session).sendMessage(any());
+
+      sender.send("a");
+      sender.send("b");
+
+      assertTrue(sent.await(5, TimeUnit.SECONDS));
+      ArgumentCaptor<TextMessage> frames = ArgumentCaptor.forClass(TextMessage.class);
+      verify(session, times(2)).sendMessage(frames.capture());
+      assertEquals("a", frames.getAllValues().get(0).getPayload());
+      assertEquals("b", frames.getAllValues().get(1).getPayload());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}